@@ -0,0 +1,321 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NIO.2 echo server: the proactor counterpart of EPollServer. The kernel does
+ * the reads and writes and completion handlers run on the threads of an
+ * AsynchronousChannelGroup, so there is no select loop of our own.
+ *
+ * Same behaviour as EPollServer: "Hello from server" on connect, then every
+ * read is echoed back (exactly, or zero padded to BUFFER_SIZE), using pooled
+ * direct buffers and gathering writes.
+ *
+ * How-to: java ServerManager <ip> <port> AIO <BUFFER_SIZE> <group threads>
+ */
+public class AIOServer {
+
+	static String ADDRESS = "localhost";
+	static int PORT = 8511;
+
+	static int BUFFER_SIZE = 1024 * 51;
+	static int THREADNUM = Runtime.getRuntime().availableProcessors();
+
+	// echo exactly the bytes read, or a zero padded BUFFER_SIZE reply
+	static boolean EXACT_ECHO = true;
+
+	static final ServerMetrics metrics = Metrics.server("AIOServer");
+
+	private static AsynchronousServerSocketChannel serverChannel;
+
+	public static void main(String[] args) {
+
+		execute(ADDRESS, PORT, BUFFER_SIZE, THREADNUM);
+	}
+
+	public static void execute(String ip, int port, int buffer, int threadNum) {
+
+		BUFFER_SIZE = buffer;
+		threadNum = threadNum < 1 ? 1 : threadNum;
+
+		Util.loger("The AIO server is starting on port:" + port);
+
+		try {
+			final AtomicInteger ids = new AtomicInteger();
+			AsynchronousChannelGroup group = AsynchronousChannelGroup.withFixedThreadPool(threadNum,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							return new Thread(r, "AIOServerThread-" + ids.incrementAndGet());
+						}
+					});
+
+			serverChannel = AsynchronousServerSocketChannel.open(group);
+			serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			serverChannel.bind(new InetSocketAddress(ip, port), 1024);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+
+		serverChannel.accept(null, acceptHandler);
+
+		Util.loger("threadNum is " + threadNum + " (AsynchronousChannelGroup)");
+	}
+
+	private static final CompletionHandler<AsynchronousSocketChannel, Void> acceptHandler = new CompletionHandler<AsynchronousSocketChannel, Void>() {
+
+		@Override
+		public void completed(AsynchronousSocketChannel channel, Void att) {
+			// ask for the next one first, so accepting never waits on us
+			serverChannel.accept(null, this);
+
+			Log.debug("Accepting connection");
+			AioConnection conn = new AioConnection(channel);
+			conn.send(ByteBuffer.wrap(Connection.HELLO));
+			conn.read();
+		}
+
+		@Override
+		public void failed(Throwable exc, Void att) {
+			if (serverChannel.isOpen()) {
+				metrics.errors.increment();
+				Log.warn("accept failed: " + exc);
+				serverChannel.accept(null, this);
+			}
+		}
+	};
+
+	/**
+	 * State of one connection. At most one read and one write are outstanding at
+	 * any time; they may complete on different group threads, so the outbound
+	 * queue and the flags are guarded by the connection itself.
+	 *
+	 * inbound belongs to the read side from read() until its handler is done
+	 * with it (reading); close() frees it only when no read owns it, otherwise
+	 * the handler does, as a closed channel still completes the pending read.
+	 */
+	static class AioConnection {
+
+		final AsynchronousSocketChannel channel;
+		ByteBuffer inbound;
+
+		private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+		private final ByteBuffer[] gather = new ByteBuffer[Connection.GATHER_SIZE];
+		private int gathered;
+		private boolean writing;
+		private boolean readPaused;
+		private boolean reading;
+		private boolean closed;
+
+		AioConnection(AsynchronousSocketChannel channel) {
+			this.channel = channel;
+			this.inbound = BufferPool.acquire(BUFFER_SIZE);
+			metrics.accepted.increment();
+		}
+
+		void read() {
+			synchronized (this) {
+				if (closed) {
+					readDone();
+					return;
+				}
+				reading = true;
+			}
+			inbound.clear().limit(BUFFER_SIZE); // the pooled buffer may be bigger
+			channel.read(inbound, this, readHandler);
+		}
+
+		/**
+		 * Queues data and starts a write unless one is already in flight.
+		 */
+		void send(ByteBuffer data) {
+			synchronized (this) {
+				if (closed) {
+					BufferPool.release(data);
+					return;
+				}
+				outbound.addLast(data);
+				if (writing)
+					return;
+				writing = true;
+			}
+			writeNext();
+		}
+
+		private void writeNext() {
+			synchronized (this) {
+				gathered = 0;
+				while (gathered < gather.length && !outbound.isEmpty())
+					gather[gathered++] = outbound.pollFirst();
+				if (gathered == 0) {
+					writing = false;
+					return;
+				}
+			}
+			channel.write(gather, 0, gathered, 0L, TimeUnit.MILLISECONDS, this, writeHandler);
+		}
+
+		/**
+		 * @return true if reading may go on, false once the client is
+		 *         Connection.MAX_OUTBOUND buffers behind
+		 */
+		private boolean echo(ByteBuffer data) {
+			ByteBuffer reply;
+			if (EXACT_ECHO) {
+				reply = data;
+				synchronized (this) {
+					inbound = BufferPool.acquire(BUFFER_SIZE);
+				}
+			} else {
+				reply = BufferPool.acquire(BUFFER_SIZE);
+				reply.put(data);
+				BufferPool.pad(reply);
+				reply.flip();
+			}
+			send(reply);
+
+			synchronized (this) {
+				readPaused = !closed && outbound.size() >= Connection.MAX_OUTBOUND;
+				if (closed || readPaused) {
+					readDone();
+					return false;
+				}
+				return true;
+			}
+		}
+
+		/**
+		 * The read side no longer owns inbound; frees it if the connection is
+		 * already closed.
+		 */
+		private synchronized void readDone() {
+			reading = false;
+			if (closed && inbound != null) {
+				BufferPool.release(inbound);
+				inbound = null;
+			}
+		}
+
+		void close() {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+				if (!reading) {
+					// a pending read still writes into inbound, its handler frees it
+					BufferPool.release(inbound);
+					inbound = null;
+				}
+				ByteBuffer data;
+				while ((data = outbound.poll()) != null)
+					BufferPool.release(data);
+			}
+			metrics.closed.increment();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private static final CompletionHandler<Integer, AioConnection> readHandler = new CompletionHandler<Integer, AioConnection>() {
+
+		@Override
+		public void completed(Integer read, AioConnection conn) {
+			long eventStart = System.nanoTime();
+			if (read < 0) {
+				Log.debug("Nothing was there to be read, closing connection");
+				conn.readDone();
+				conn.close();
+				return;
+			}
+			metrics.bytesIn.add(read);
+			metrics.messagesIn.increment();
+
+			ByteBuffer data;
+			synchronized (conn) {
+				if (conn.closed) {
+					conn.readDone();
+					return;
+				}
+				data = conn.inbound;
+			}
+			data.flip();
+
+			boolean more = conn.echo(data);
+			metrics.eventTime.record(System.nanoTime() - eventStart);
+			if (more)
+				conn.read();
+		}
+
+		@Override
+		public void failed(Throwable exc, AioConnection conn) {
+			Log.debug("Reading problem, closing connection");
+			metrics.errors.increment();
+			conn.readDone();
+			conn.close();
+		}
+	};
+
+	private static final CompletionHandler<Long, AioConnection> writeHandler = new CompletionHandler<Long, AioConnection>() {
+
+		@Override
+		public void completed(Long written, AioConnection conn) {
+			metrics.bytesOut.add(written);
+
+			boolean resume = false;
+			synchronized (conn) {
+				// the unfinished ones are a suffix of gather, put them back in order
+				for (int i = conn.gathered - 1; i >= 0; i--) {
+					ByteBuffer data = conn.gather[i];
+					conn.gather[i] = null;
+					if (data.hasRemaining() && !conn.closed) {
+						conn.outbound.addFirst(data);
+					} else {
+						if (!data.hasRemaining())
+							metrics.messagesOut.increment();
+						BufferPool.release(data);
+					}
+				}
+				conn.gathered = 0;
+				if (conn.closed) {
+					conn.writing = false;
+					return;
+				}
+				if (conn.readPaused && conn.outbound.size() < Connection.MAX_OUTBOUND) {
+					conn.readPaused = false;
+					resume = true;
+				}
+			}
+
+			conn.writeNext();
+			if (resume)
+				conn.read();
+		}
+
+		@Override
+		public void failed(Throwable exc, AioConnection conn) {
+			Log.debug("Writing problem, closing connection");
+			metrics.errors.increment();
+			synchronized (conn) {
+				for (int i = 0; i < conn.gathered; i++) {
+					BufferPool.release(conn.gather[i]);
+					conn.gather[i] = null;
+				}
+				conn.gathered = 0;
+			}
+			conn.close();
+		}
+	};
+}
@@ -0,0 +1,176 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pool of direct ByteBuffers for the NIO read/write paths, so the steady
+ * state of a server allocates nothing per message.
+ *
+ * Buffers come in power-of-two size classes from 1 KB to 1 MB. Every thread
+ * keeps a small cache per class and only goes to the shared, lock-free queue
+ * of that class when its own cache is empty (acquire) or full (release).
+ * Anything bigger than the largest class is allocated on demand and left to the
+ * GC on release.
+ *
+ * Debug mode (-Dbufferpool.debug=true) remembers where every outstanding buffer
+ * was acquired, complains about double releases and reports leaks at exit.
+ *
+ * How-to: ByteBuffer buf = BufferPool.acquire(BUFFER_SIZE); ... then
+ * BufferPool.release(buf) exactly once, never a slice or duplicate of it.
+ */
+public final class BufferPool {
+
+	static final int MIN_SHIFT = 10; // 1 KB
+	static final int MAX_SHIFT = 20; // 1 MB
+	static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+	static int THREAD_CACHE_SIZE = 32; // per size class and thread
+	static int SHARED_CACHE_SIZE = 4096; // per size class
+
+	static final boolean DEBUG = Boolean.getBoolean("bufferpool.debug");
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static final ConcurrentLinkedQueue<ByteBuffer>[] shared = new ConcurrentLinkedQueue[CLASSES];
+	private static final AtomicInteger[] sharedCount = new AtomicInteger[CLASSES];
+
+	private static final ThreadLocal<ArrayDeque<ByteBuffer>[]> local = new ThreadLocal<ArrayDeque<ByteBuffer>[]>() {
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		@Override
+		protected ArrayDeque<ByteBuffer>[] initialValue() {
+			ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[CLASSES];
+			for (int i = 0; i < CLASSES; i++)
+				caches[i] = new ArrayDeque<ByteBuffer>(THREAD_CACHE_SIZE);
+			return caches;
+		}
+	};
+
+	// outstanding buffers and where they were acquired, debug mode only
+	private static final Map<ByteBuffer, Throwable> outstanding = DEBUG
+			? Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Throwable>())
+			: null;
+
+	// source of zeros for pad(), read-only and never moved
+	private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(1 << MAX_SHIFT).asReadOnlyBuffer();
+	private static final ThreadLocal<ByteBuffer> zeros = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ZEROS.duplicate();
+		}
+	};
+
+	static {
+		for (int i = 0; i < CLASSES; i++) {
+			shared[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			sharedCount[i] = new AtomicInteger();
+		}
+
+		if (DEBUG) {
+			Runtime.getRuntime().addShutdownHook(new Thread("BufferPool-leaks") {
+				@Override
+				public void run() {
+					reportLeaks();
+				}
+			});
+		}
+	}
+
+	private BufferPool() {
+	}
+
+	/**
+	 * Returns a cleared direct buffer whose limit is size. Its capacity may be
+	 * bigger, rounded up to the size class.
+	 */
+	static ByteBuffer acquire(int size) {
+		int idx = sizeClass(size);
+		ByteBuffer buf = null;
+
+		if (idx < CLASSES) {
+			buf = local.get()[idx].pollLast();
+			if (buf == null) {
+				buf = shared[idx].poll();
+				if (buf != null)
+					sharedCount[idx].decrementAndGet();
+			}
+		}
+		if (buf == null)
+			buf = ByteBuffer.allocateDirect(idx < CLASSES ? 1 << (idx + MIN_SHIFT) : size);
+
+		buf.clear().limit(size);
+
+		if (DEBUG)
+			outstanding.put(buf, new Throwable("acquired by " + Thread.currentThread().getName()));
+		return buf;
+	}
+
+	/**
+	 * Gives a buffer back. Heap buffers (for example a wrapped byte[]) are
+	 * ignored, so callers can release whatever sits in an outbound queue.
+	 */
+	static void release(ByteBuffer buf) {
+		if (buf == null || !buf.isDirect() || buf.isReadOnly())
+			return;
+
+		if (DEBUG && outstanding.remove(buf) == null) {
+			Util.loger("BufferPool: release of a buffer that is not outstanding (double release?)");
+			new Throwable().printStackTrace();
+			return;
+		}
+
+		int capacity = buf.capacity();
+		if (Integer.bitCount(capacity) != 1)
+			return; // not one of ours
+		int idx = Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+		if (idx < 0 || idx >= CLASSES)
+			return; // oversized, let the GC have it
+
+		ArrayDeque<ByteBuffer> cache = local.get()[idx];
+		if (cache.size() < THREAD_CACHE_SIZE) {
+			cache.addLast(buf);
+		} else if (sharedCount[idx].incrementAndGet() <= SHARED_CACHE_SIZE) {
+			shared[idx].offer(buf);
+		} else {
+			sharedCount[idx].decrementAndGet();
+		}
+	}
+
+	/**
+	 * Fills the rest of buf, up to its limit, with zeros without allocating.
+	 */
+	static void pad(ByteBuffer buf) {
+		int n = buf.remaining();
+		while (n > 0) {
+			ByteBuffer z = zeros.get();
+			int chunk = Math.min(n, z.capacity());
+			z.clear().limit(chunk);
+			buf.put(z);
+			n -= chunk;
+		}
+	}
+
+	static int sizeClass(int size) {
+		if (size <= (1 << MIN_SHIFT))
+			return 0;
+		int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+		return shift - MIN_SHIFT; // >= CLASSES means oversized
+	}
+
+	static int outstanding() {
+		return DEBUG ? outstanding.size() : -1;
+	}
+
+	static void reportLeaks() {
+		if (!DEBUG)
+			return;
+
+		synchronized (outstanding) {
+			Util.loger("BufferPool: " + outstanding.size() + " buffer(s) never released");
+			for (Throwable where : outstanding.values())
+				where.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,214 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Per-connection state of the NIO servers. It is carried as the SelectionKey
+ * attachment, so the read/echo/write path gets everything it needs from the key
+ * and never does a put/get/remove on a map shared by all connections.
+ *
+ * A Connection is only ever touched by the thread that owns its selector.
+ *
+ * It is also the node of its reactor's TimingWheel; see nextDeadline() for the
+ * idle, lifetime and write-stall limits.
+ *
+ */
+public class Connection extends TimingWheel.Node {
+
+	static final byte[] HELLO = "Hello from server".getBytes();
+
+	static int GATHER_SIZE = 16; // buffers per gathering write
+	static int MAX_OUTBOUND = 64; // queued buffers before we stop reading from the client
+
+	// timeouts in milliseconds, 0 is off
+	static long IDLE_TIMEOUT = 0; // no byte read or written for this long
+	static long MAX_LIFETIME = 0; // connection age
+	static long WRITE_STALL_TIMEOUT = 0; // data queued but the client took none of it
+
+	final SocketChannel channel;
+	final int bufferSize;
+	final ServerMetrics metrics; // engine-wide counters, this connection adds to them
+
+	// read buffer from the BufferPool, reused for every read on this connection;
+	// with a decoder it accumulates reads until frames are complete
+	ByteBuffer inbound;
+
+	// null when every read is taken as one message
+	FrameDecoder decoder;
+
+	SelectionKey key;
+	boolean dirty; // on the reactor's list of connections to flush this loop iteration
+
+	// requests out at a WorkerStage, oldest first, so replies keep request order
+	ArrayDeque<WorkerStage.Task> staged;
+	int refused; // of the staged ones, waiting for room at the stage
+
+	// data waiting to be written, oldest first; a buffer stays here until the
+	// kernel took all of it
+	final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+	private final ByteBuffer[] gather = new ByteBuffer[GATHER_SIZE];
+
+	long bytesIn;
+	long bytesOut;
+	long messagesIn;
+	long messagesOut;
+
+	final long createdAt;
+	long lastReadAt;
+	long lastWriteAt;
+	long writePendingSince; // last write progress while data was queued
+
+	Connection(SocketChannel channel, int bufferSize, ServerMetrics metrics) {
+		this.channel = channel;
+		this.metrics = metrics;
+		this.bufferSize = bufferSize;
+		this.inbound = BufferPool.acquire(bufferSize);
+		this.createdAt = System.currentTimeMillis();
+		this.lastReadAt = createdAt;
+		this.lastWriteAt = createdAt;
+		metrics.accepted.increment();
+	}
+
+	void queue(ByteBuffer data) {
+		if (outbound.isEmpty())
+			writePendingSince = System.currentTimeMillis();
+		outbound.addLast(data);
+	}
+
+	/**
+	 * Decode reads into frames from now on; the whole inbound buffer becomes
+	 * room for reads.
+	 */
+	void useFrames(FrameDecoder decoder) {
+		this.decoder = decoder;
+		inbound.limit(inbound.capacity());
+	}
+
+	void readDone(int read) {
+		bytesIn += read;
+		metrics.bytesIn.add(read);
+		if (decoder == null)
+			frameDone();
+		lastReadAt = System.currentTimeMillis();
+	}
+
+	void frameDone() {
+		messagesIn++;
+		metrics.messagesIn.increment();
+	}
+
+	/**
+	 * Zero-copy echo: the inbound buffer, flipped to exactly the bytes just read,
+	 * is queued as it is and a fresh pooled buffer becomes the read buffer.
+	 */
+	void echoInbound() {
+		queue(takeInbound());
+	}
+
+	/**
+	 * Hands over the inbound buffer as it is and reads into a fresh one.
+	 */
+	ByteBuffer takeInbound() {
+		ByteBuffer data = inbound;
+		inbound = BufferPool.acquire(bufferSize);
+		return data;
+	}
+
+	/**
+	 * Writes as much of the outbound queue as the socket takes, up to
+	 * GATHER_SIZE buffers per gathering write(ByteBuffer[]). Buffers written
+	 * completely go back to the pool, a partially written one stays at the head
+	 * of the queue.
+	 *
+	 * @return true once the queue is empty
+	 */
+	boolean flush() throws IOException {
+		while (!outbound.isEmpty()) {
+			int n = 0;
+			while (n < gather.length && !outbound.isEmpty())
+				gather[n++] = outbound.pollFirst();
+
+			long written = channel.write(gather, 0, n);
+			if (written > 0) {
+				bytesOut += written;
+				metrics.bytesOut.add(written);
+				lastWriteAt = System.currentTimeMillis();
+				writePendingSince = lastWriteAt;
+			}
+
+			// the unfinished ones are a suffix of gather, put them back in order
+			boolean full = true;
+			for (int i = n - 1; i >= 0; i--) {
+				ByteBuffer data = gather[i];
+				gather[i] = null;
+				if (data.hasRemaining()) {
+					outbound.addFirst(data);
+					full = false;
+				} else {
+					messagesOut++;
+					metrics.messagesOut.increment();
+					BufferPool.release(data);
+				}
+			}
+			if (!full)
+				return false; // socket buffer is full, wait for OP_WRITE
+		}
+		return true;
+	}
+
+	/**
+	 * Keep OP_WRITE while anything is queued, and stop reading once the client
+	 * is MAX_OUTBOUND buffers behind, requests still at the worker stage
+	 * included, or while the stage refuses its requests.
+	 */
+	int interestOps() {
+		int ops = outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+		int behind = outbound.size() + (staged == null ? 0 : staged.size());
+		if (behind < MAX_OUTBOUND && refused == 0)
+			ops |= SelectionKey.OP_READ;
+		return ops;
+	}
+
+	/**
+	 * The earliest of the idle, lifetime and write-stall deadlines that apply
+	 * right now. Reads and writes only move the timestamps; the reactor calls
+	 * this again when the timer fires and closes the connection if it is due.
+	 *
+	 * @return absolute time in milliseconds, Long.MAX_VALUE if no limit is set
+	 */
+	long nextDeadline() {
+		long deadline = Long.MAX_VALUE;
+		if (IDLE_TIMEOUT > 0)
+			deadline = Math.max(lastReadAt, lastWriteAt) + IDLE_TIMEOUT;
+		if (MAX_LIFETIME > 0)
+			deadline = Math.min(deadline, createdAt + MAX_LIFETIME);
+		if (WRITE_STALL_TIMEOUT > 0 && !outbound.isEmpty())
+			deadline = Math.min(deadline, writePendingSince + WRITE_STALL_TIMEOUT);
+		return deadline;
+	}
+
+	static boolean hasTimeouts() {
+		return IDLE_TIMEOUT > 0 || MAX_LIFETIME > 0 || WRITE_STALL_TIMEOUT > 0;
+	}
+
+	/**
+	 * Gives the inbound buffer and anything still queued back to the pool; called
+	 * once, when the connection is closed.
+	 */
+	void release() {
+		metrics.closed.increment();
+		BufferPool.release(inbound);
+		inbound = null;
+		ByteBuffer data;
+		while ((data = outbound.poll()) != null)
+			BufferPool.release(data);
+	}
+
+	@Override
+	public String toString() {
+		return "Connection[in=" + bytesIn + "/" + messagesIn + ", out=" + bytesOut + "/" + messagesOut + ", age="
+				+ (System.currentTimeMillis() - createdAt) + "ms]";
+	}
+}
@@ -0,0 +1,174 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Micro benchmark of what sits on the request paths: Util_Task.encrypt /
+ * decrypt, Util.bigMsg and Util.byteBuffer2String, across payload sizes and
+ * thread counts.
+ *
+ * Every (benchmark, size, threads) cell is warmed up first, then measured for a
+ * fixed time; each thread calls the benchmark in a loop and keeps its results
+ * alive in a sink so the JIT cannot drop the call. Reports ops/s, payload MB/s
+ * and the bytes allocated per op, read from the per-thread allocation counter
+ * of com.sun.management.ThreadMXBean (what the JMH GC profiler reports as
+ * gc.alloc.rate.norm).
+ *
+ * Usage: java CryptoBench [-bench=encrypt,decrypt,bigMsg,toString]
+ * [-sizes=64,1024,16384,262144,1048576] [-threads=1,2,4] [-warmup=1000]
+ * [-time=2000]
+ *
+ * The baseline every crypto or payload change has to beat.
+ */
+public class CryptoBench {
+
+	static String KEY = "aiyan&albert@bcit4comp8505&8506";
+
+	static String[] BENCHES = { "encrypt", "decrypt", "bigMsg", "toString" };
+	static int[] SIZES = { 64, 1024, 16 * 1024, 256 * 1024, 1024 * 1024 };
+	static int[] THREADS = { 1, 2, 4 };
+	static int WARMUP = 1000; // milli-sec per cell
+	static int TIME = 2000; // milli-sec per cell
+
+	private static final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	/**
+	 * One call of a benchmark; built per thread so the input is not shared.
+	 */
+	interface Op {
+		Object call() throws Exception;
+	}
+
+	static Op create(String bench, int size) throws Exception {
+		final byte[] payload = Util.bigMsg(size).substring(0, size).getBytes();
+		final String text = new String(payload);
+		switch (bench) {
+		case "encrypt":
+			return () -> Util_Task.encrypt(text, KEY);
+		case "decrypt":
+			final byte[] encrypted = Util_Task.encrypt(text, KEY);
+			return () -> Util_Task.decrypt(encrypted, KEY);
+		case "bigMsg":
+			return () -> Util.bigMsg(size);
+		case "toString":
+			final ByteBuffer buffer = ByteBuffer.wrap(payload);
+			return () -> Util.byteBuffer2String(buffer);
+		default:
+			throw new IllegalArgumentException("unknown benchmark " + bench);
+		}
+	}
+
+	/**
+	 * Per thread result of one cell.
+	 */
+	static final class Runner implements Runnable {
+		final Op op;
+		final long warmupUntil;
+		final long until;
+		final CountDownLatch done;
+		long ops;
+		long allocated;
+		Object sink;
+		Exception failure;
+
+		Runner(Op op, long warmupUntil, long until, CountDownLatch done) {
+			this.op = op;
+			this.warmupUntil = warmupUntil;
+			this.until = until;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (System.nanoTime() < warmupUntil)
+					sink = op.call();
+
+				long tid = Thread.currentThread().getId();
+				long allocatedAtStart = threadBean.getThreadAllocatedBytes(tid);
+				long n = 0;
+				// check the clock every 16 calls, the small sizes run in well under a micro-sec
+				do {
+					for (int i = 0; i < 16; i++)
+						sink = op.call();
+					n += 16;
+				} while (System.nanoTime() < until);
+				allocated = threadBean.getThreadAllocatedBytes(tid) - allocatedAtStart;
+				ops = n;
+			} catch (Exception e) {
+				failure = e;
+			} finally {
+				done.countDown();
+			}
+		}
+	}
+
+	static void cell(String bench, int size, int threads) throws Exception {
+		long start = System.nanoTime();
+		long warmupUntil = start + WARMUP * 1000000L;
+		long until = warmupUntil + TIME * 1000000L;
+
+		CountDownLatch done = new CountDownLatch(threads);
+		List<Runner> runners = new ArrayList<Runner>();
+		for (int i = 0; i < threads; i++) {
+			Runner runner = new Runner(create(bench, size), warmupUntil, until, done);
+			runners.add(runner);
+			new Thread(runner, "CryptoBench-" + bench + "-" + (i + 1)).start();
+		}
+		done.await();
+		double seconds = (System.nanoTime() - warmupUntil) / 1e9;
+
+		long ops = 0;
+		long allocated = 0;
+		for (Runner runner : runners) {
+			if (runner.failure != null)
+				throw runner.failure;
+			ops += runner.ops;
+			allocated += runner.allocated;
+		}
+		double opsPerSec = ops / seconds;
+		System.out.println(String.format("%-10s %9d %7d %14.1f %12.1f %14.1f", bench, size, threads, opsPerSec,
+				opsPerSec * size / (1024 * 1024), (double) allocated / ops));
+	}
+
+	static int[] parseInts(String list) {
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			values[i] = Integer.parseInt(parts[i].trim());
+		return values;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		for (String arg : args) {
+			if (arg.startsWith("-bench="))
+				BENCHES = arg.substring("-bench=".length()).split(",");
+			else if (arg.startsWith("-sizes="))
+				SIZES = parseInts(arg.substring("-sizes=".length()));
+			else if (arg.startsWith("-threads="))
+				THREADS = parseInts(arg.substring("-threads=".length()));
+			else if (arg.startsWith("-warmup="))
+				WARMUP = Integer.parseInt(arg.substring("-warmup=".length()));
+			else if (arg.startsWith("-time="))
+				TIME = Integer.parseInt(arg.substring("-time=".length()));
+			else {
+				Util.loger(" Usage: [-bench=a,b] [-sizes=n,m] [-threads=n,m] [-warmup=ms] [-time=ms]");
+				return;
+			}
+		}
+		if (!threadBean.isThreadAllocatedMemorySupported())
+			Util.loger("Per-thread allocation is not supported by this JVM, B/op reads 0");
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+
+		System.out.println(String.format("%-10s %9s %7s %14s %12s %14s", "bench", "size", "threads", "ops/s", "MB/s",
+				"alloc B/op"));
+		for (String bench : BENCHES)
+			for (int size : SIZES)
+				for (int threads : THREADS)
+					cell(bench, size, threads);
+	}
+}
@@ -0,0 +1,271 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES/CBC/PKCS5Padding for the request tasks, with the per-call setup of
+ * Util_Task taken out of the hot path.
+ *
+ * The key is hashed into its SecretKeySpec once per key string and cached; the
+ * Cipher, the SecureRandom and the IV scratch are per thread, so a worker only
+ * pays for Cipher.init() and the AES itself. encrypt()/decrypt() go from one
+ * ByteBuffer to another, direct or heap, without a byte[] in between.
+ *
+ * Wire format as Util_Task always had it: 16 byte random IV, then the
+ * ciphertext; the AES key is the first 16 bytes of SHA-256(key).
+ *
+ * Bulk mode (encryptBulk/decryptBulk) is AES/CTR instead, same IV + ciphertext
+ * layout with no padding. CBC has to run block after block, CTR does not: from
+ * BULK_THRESHOLD bytes on the buffer is cut into BULK_CHUNK pieces, each started
+ * at its own counter value, and encrypted on a ForkJoinPool. The output is
+ * byte for byte that of one sequential CTR pass.
+ */
+public final class CryptoEngine {
+
+	static final int IV_SIZE = 16;
+	static final int KEY_SIZE = 16;
+	static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+	static final String BULK_TRANSFORMATION = "AES/CTR/NoPadding";
+
+	static int BULK_THRESHOLD = 1 << 20; // below this, bulk mode is one sequential pass
+	static int BULK_CHUNK = 256 << 10; // bytes per parallel piece, a multiple of the AES block
+	static ForkJoinPool BULK_POOL = ForkJoinPool.commonPool();
+
+	private static final ConcurrentMap<String, SecretKeySpec> keys = new ConcurrentHashMap<String, SecretKeySpec>();
+
+	private static final ThreadLocal<Cipher> cipher = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance(TRANSFORMATION);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(TRANSFORMATION + " is not available", e);
+			}
+		}
+	};
+
+	private static final ThreadLocal<Cipher> bulkCipher = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance(BULK_TRANSFORMATION);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(BULK_TRANSFORMATION + " is not available", e);
+			}
+		}
+	};
+
+	private static final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>() {
+		@Override
+		protected SecureRandom initialValue() {
+			return new SecureRandom();
+		}
+	};
+
+	private static final ThreadLocal<byte[]> ivScratch = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[IV_SIZE];
+		}
+	};
+
+	private CryptoEngine() {
+	}
+
+	/**
+	 * The AES key of a key string, derived on first use and cached.
+	 */
+	static SecretKeySpec key(String key) {
+		SecretKeySpec spec = keys.get(key);
+		if (spec == null) {
+			spec = deriveKey(key);
+			SecretKeySpec prev = keys.putIfAbsent(key, spec);
+			if (prev != null)
+				spec = prev;
+		}
+		return spec;
+	}
+
+	private static SecretKeySpec deriveKey(String key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+			return new SecretKeySpec(hash, 0, KEY_SIZE, "AES");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * @return bytes encrypt() writes for plainLength bytes of input
+	 */
+	static int encryptedSize(int plainLength) {
+		return IV_SIZE + (plainLength / 16 + 1) * 16;
+	}
+
+	/**
+	 * Encrypts src.remaining() bytes into dst as IV + ciphertext; both buffers
+	 * advance.
+	 *
+	 * @return bytes written to dst
+	 */
+	static int encrypt(ByteBuffer src, ByteBuffer dst, String key) throws GeneralSecurityException {
+		byte[] iv = ivScratch.get();
+		random.get().nextBytes(iv);
+
+		Cipher c = cipher.get();
+		c.init(Cipher.ENCRYPT_MODE, key(key), new IvParameterSpec(iv));
+		dst.put(iv);
+		return IV_SIZE + c.doFinal(src, dst);
+	}
+
+	/**
+	 * Decrypts IV + ciphertext from src into dst; both buffers advance.
+	 *
+	 * @return bytes written to dst
+	 */
+	static int decrypt(ByteBuffer src, ByteBuffer dst, String key) throws GeneralSecurityException {
+		byte[] iv = ivScratch.get();
+		src.get(iv);
+
+		Cipher c = cipher.get();
+		c.init(Cipher.DECRYPT_MODE, key(key), new IvParameterSpec(iv));
+		return c.doFinal(src, dst);
+	}
+
+	/**
+	 * Bulk mode: IV + AES/CTR ciphertext of src.remaining() bytes into dst,
+	 * which must not overlap src; both buffers advance.
+	 *
+	 * @return bytes written to dst, IV_SIZE + src.remaining()
+	 */
+	static int encryptBulk(ByteBuffer src, ByteBuffer dst, String key) throws GeneralSecurityException {
+		byte[] iv = new byte[IV_SIZE];
+		random.get().nextBytes(iv);
+		dst.put(iv);
+		return IV_SIZE + ctr(src, dst, key(key), iv);
+	}
+
+	static int decryptBulk(ByteBuffer src, ByteBuffer dst, String key) throws GeneralSecurityException {
+		byte[] iv = new byte[IV_SIZE];
+		src.get(iv);
+		return ctr(src, dst, key(key), iv);
+	}
+
+	/**
+	 * CTR is its own inverse, this both encrypts and decrypts.
+	 */
+	private static int ctr(ByteBuffer src, ByteBuffer dst, SecretKeySpec key, byte[] iv)
+			throws GeneralSecurityException {
+		int length = src.remaining();
+		if (dst.remaining() < length)
+			throw new ShortBufferException(length + " bytes needed, " + dst.remaining() + " left");
+
+		if (length < BULK_THRESHOLD || BULK_POOL.getParallelism() < 2) {
+			ctrChunk(src, dst, key, iv, 0);
+		} else {
+			int chunk = Math.max(16, BULK_CHUNK & ~15);
+			BULK_POOL.invoke(new CtrTask(src, dst, key, iv, 0, length, chunk));
+			src.position(src.position() + length);
+			dst.position(dst.position() + length);
+		}
+		return length;
+	}
+
+	/**
+	 * Runs CTR over all of src into dst, starting offset bytes (a multiple of
+	 * 16) into the key stream of iv.
+	 */
+	private static void ctrChunk(ByteBuffer src, ByteBuffer dst, SecretKeySpec key, byte[] iv, long offset)
+			throws GeneralSecurityException {
+		Cipher c = bulkCipher.get();
+		c.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counter(iv, offset / 16)));
+		c.doFinal(src, dst);
+	}
+
+	/**
+	 * @return iv + blocks as a 128 bit big-endian number, as the CTR mode of the
+	 *         JDK counts
+	 */
+	static byte[] counter(byte[] iv, long blocks) {
+		byte[] ctr = iv.clone();
+		long carry = blocks;
+		for (int i = ctr.length - 1; i >= 0 && carry != 0; i--) {
+			long sum = (ctr[i] & 0xFF) + (carry & 0xFF);
+			ctr[i] = (byte) sum;
+			carry = (carry >>> 8) + (sum >>> 8);
+		}
+		return ctr;
+	}
+
+	/**
+	 * Splits [from, to) in halves down to one chunk each; the buffers are only
+	 * ever used through duplicates, so the pieces never share a position.
+	 */
+	private static final class CtrTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final ByteBuffer src;
+		private final ByteBuffer dst;
+		private final SecretKeySpec key;
+		private final byte[] iv;
+		private final int from;
+		private final int to;
+		private final int chunk;
+
+		CtrTask(ByteBuffer src, ByteBuffer dst, SecretKeySpec key, byte[] iv, int from, int to, int chunk) {
+			this.src = src;
+			this.dst = dst;
+			this.key = key;
+			this.iv = iv;
+			this.from = from;
+			this.to = to;
+			this.chunk = chunk;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= chunk) {
+				ByteBuffer in = src.duplicate();
+				in.position(src.position() + from).limit(src.position() + to);
+				ByteBuffer out = dst.duplicate();
+				out.position(dst.position() + from).limit(dst.position() + to);
+				try {
+					ctrChunk(in, out, key, iv, from);
+				} catch (GeneralSecurityException e) {
+					throw new IllegalStateException(e);
+				}
+				return;
+			}
+			// split on a chunk boundary, so every counter offset is block aligned
+			int chunks = (to - from + chunk - 1) / chunk;
+			int mid = from + (chunks / 2) * chunk;
+			invokeAll(new CtrTask(src, dst, key, iv, from, mid, chunk), new CtrTask(src, dst, key, iv, mid, to, chunk));
+		}
+	}
+
+	static byte[] encrypt(byte[] clean, String key) throws GeneralSecurityException {
+		byte[] out = new byte[encryptedSize(clean.length)];
+		ByteBuffer dst = ByteBuffer.wrap(out);
+		int n = encrypt(ByteBuffer.wrap(clean), dst, key);
+		return n == out.length ? out : Arrays.copyOf(out, n);
+	}
+
+	static byte[] decrypt(byte[] encrypted, String key) throws GeneralSecurityException {
+		byte[] out = new byte[Math.max(0, encrypted.length - IV_SIZE)];
+		int n = decrypt(ByteBuffer.wrap(encrypted), ByteBuffer.wrap(out), key);
+		return n == out.length ? out : Arrays.copyOf(out, n);
+	}
+}
@@ -1,33 +1,73 @@
-
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Java NIO uses multiplexing to server multiple clients from the same thread.
  * Before NIO, a server had to open a thread for each client.
- * 
+ *
  * @author john @2018-01-31
- * 
- * @@todo: 1) hashmap could be bottleneck, is it thread-safe? Not Need as only
- *         one thread to read/write 2) JVM tunning 3) ip stack tuning for linux
- *         kernel
- * 
+ *
+ * @@todo: 1) JVM tunning 2) ip stack tuning for linux kernel
+ *
+ *         Multi-reactor: one acceptor thread owns the listening socket and hands
+ *         every accepted SocketChannel to one of THREADNUM reactors. Each
+ *         reactor (an EPollServer instance) owns its own Selector, and the state
+ *         of each connection travels as its SelectionKey attachment, so nothing
+ *         on the read/echo/write path is shared between threads.
+ *
+ *         Reuse-port: with REUSE_PORT every reactor binds its own
+ *         ServerSocketChannel to the same ADDRESS:PORT with SO_REUSEPORT and
+ *         accepts on its own selector; the kernel spreads the connections, so
+ *         there is neither an acceptor thread nor a cross-thread handoff.
+ *
+ *         Tasks: any thread may hand work to a reactor with execute(Runnable);
+ *         it runs on the reactor thread before the next select, and a burst of
+ *         submissions costs a single selector.wakeup().
+ *
+ *         Busy-poll: with SPIN_NANOS > 0 a reactor polls with selectNow() for
+ *         that long, then yields between polls for YIELD_NANOS, and only then
+ *         blocks in select(); it trades a core for the wakeup latency, and the
+ *         CPU time it burns that way is reported as spinCpuMillis.
+ *
+ *         Framing: with FrameDecoder.FORMAT set, reads accumulate per
+ *         connection and each complete length-prefixed frame is echoed as a
+ *         whole, however the client's writes were split by TCP.
+ *
+ *         Pipelining: replies to everything one read brought in are queued
+ *         and the connection is flushed once, at the end of the loop iteration,
+ *         without a select round trip; OP_WRITE is only for partial writes.
+ *
+ *         Worker stage: with AES_TASK every request also runs Util.commonTask
+ *         on a WorkerStage pool, off the reactor; the reply comes back through
+ *         execute(), in request order per connection. A request the full stage
+ *         refused waits on the reactor and the client is not read from until
+ *         the stage took it.
+ *
+ *         Timeouts: every reactor keeps a TimingWheel of its connections and
+ *         selects no longer than until the next deadline is due, see
+ *         Connection.nextDeadline().
  *
  *         Howto: 1) Epoll java
  *         -Djava.nio.channels.spi.SelectorProvider=sun.nio.ch.EPollSelectorProvider
  *         2) Poll java
  *         -Djava.nio.channels.spi.SelectorProvider=sun.nio.ch.PollSelectorProvider
- * 
+ *
  */
 public class EPollServer implements Runnable {
 
@@ -36,17 +76,69 @@ public class EPollServer implements Runnable {
 	public final static long SELECT_TIMEOUT = 10000;
 
 	static int BUFFER_SIZE = 1024 * 51;
-	static int THREADNUM = 1;
+	static int THREADNUM = Runtime.getRuntime().availableProcessors();
+
+	// run Util.commonTask (AES) for every request on a WorkerStage before replying
+	static boolean AES_TASK = false;
+	static String TASK_KEY = "aiyan&albert@bcit4comp8505&8506";
+	private static WorkerStage stage;
+	static long RESUBMIT_MILLIS = 1; // select timeout while refused requests wait for the stage
 
-	static int counter;
+	// busy-poll budget before a blocking select, 0 is off; see spinSelect()
+	static long SPIN_NANOS = 0;
+	static long YIELD_NANOS = 0;
 
-	private ServerSocketChannel serverChannel;
+	private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+	// tasks run per loop iteration at most, the rest wait for the next one
+	static int MAX_TASKS_PER_LOOP = 1024;
+
+	// how the acceptor picks a reactor: round-robin or least-loaded
+	static boolean LEAST_LOADED = false;
+	static long ACCEPT_BACKOFF_MILLIS = 100; // after EMFILE / ENFILE
+
+	// every reactor listens on its own SO_REUSEPORT socket instead of the acceptor
+	static boolean REUSE_PORT = false;
+
+	// echo exactly the bytes read (zero-copy), or a zero padded BUFFER_SIZE reply
+	static boolean EXACT_ECHO = true;
+
+	// resolution and size of the per-reactor timing wheel, see Connection for the timeouts
+	static long TICK_MILLIS = 100;
+	static int WHEEL_SLOTS = 512;
+
+	static final ServerMetrics metrics = Metrics.server("EPollServer");
+
+	private static ServerSocketChannel serverChannel;
+	private static EPollServer[] reactors;
+
+	private final int id;
 	private Selector selector;
+	private ServerSocketChannel listenChannel; // reuse-port mode only
+
+	// work handed to this reactor from other threads, see execute()
+	private final MpscQueue<Runnable> tasks = new MpscQueue<Runnable>();
+	// true while a selector.wakeup() is on its way, so a burst of tasks costs one
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+	private volatile Thread thread;
+
+	private final FrameDecoder.Handler frameHandler = this::echoFrame;
+
+	// connections with replies queued during this loop iteration, see flushDirty()
+	private final ArrayList<Connection> dirty = new ArrayList<Connection>();
+
+	// requests a full worker stage refused, in arrival order, see resubmit()
+	private final ArrayDeque<StageTask> refused = new ArrayDeque<StageTask>();
 
-	private Map<SocketChannel, byte[]> mesgCache = new HashMap<SocketChannel, byte[]>();
+	// written by the reactor thread only, read by the acceptor for least-loaded dispatch
+	private volatile int connections;
 
-	public EPollServer() {
+	// idle, lifetime and write-stall timers of this reactor's connections
+	private final TimingWheel<Connection> timers = new TimingWheel<Connection>(TICK_MILLIS, WHEEL_SLOTS,
+			this::expired);
 
+	public EPollServer(int id) {
+		this.id = id;
 	}
 
 	public static void main(String[] args) {
@@ -56,66 +148,200 @@ public class EPollServer implements Runnable {
 
 	public static void execute(String ip, int port, int buffer, int threadNum) {
 
-		EPollServer ss = new EPollServer();
-		ss.init(ip, port);
+		execute(ip, port, buffer, threadNum, REUSE_PORT);
+	}
+
+	public static void execute(String ip, int port, int buffer, int threadNum, boolean reusePort) {
+
 		BUFFER_SIZE = buffer;
+		threadNum = threadNum < 1 ? 1 : threadNum;
 
 		Util.loger("The EPoll server is starting on port:" + port);
 		Util.loger("The provier is \t" + getProvider());
 
-		for (int i = 1; i <= threadNum; i++) {
-			Thread sstt = new Thread(ss, "SelectServerThread-" + i);
+		if (reusePort && !supportsReusePort()) {
+			Util.loger("SO_REUSEPORT is not supported here, falling back to the single acceptor");
+			reusePort = false;
+		}
+		REUSE_PORT = reusePort;
+
+		if (AES_TASK && stage == null)
+			stage = new WorkerStage("EPollServer", WorkerStage.THREADS, WorkerStage.QUEUE_DEPTH);
+
+		try {
+			reactors = new EPollServer[threadNum];
+			for (int i = 0; i < threadNum; i++) {
+				reactors[i] = new EPollServer(i + 1);
+				reactors[i].init();
+				if (reusePort)
+					reactors[i].listen(ip, port);
+			}
+
+			if (!reusePort) {
+				serverChannel = ServerSocketChannel.open();
+				serverChannel.socket().bind(new InetSocketAddress(ip, port));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+
+		for (int i = 0; i < threadNum; i++) {
+			Thread sstt = new Thread(reactors[i], "EPollReactor-" + (i + 1));
 			sstt.start();
 		}
 
-		Util.loger("threadNum is " + threadNum);
+		Util.loger("threadNum is " + threadNum + ", listener is " + (reusePort ? "SO_REUSEPORT" : "acceptor"));
+
+		if (reusePort)
+			return;
+
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+		}, "EPollAcceptor");
+		acceptor.start();
 
 	}
 
-	private void init(String ip, int port) {
-		Util.loger("initializing server");
+	private void init() throws IOException {
+		Util.loger("initializing reactor " + id);
 
 		if (selector != null)
 			return;
-		if (serverChannel != null)
-			return;
 
+		selector = Selector.open();
+	}
+
+	/**
+	 * Reuse-port mode: bind a listening socket of our own and accept on this
+	 * reactor's selector.
+	 */
+	private void listen(String ip, int port) throws IOException {
+		listenChannel = ServerSocketChannel.open();
+		listenChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		listenChannel.configureBlocking(false);
+		listenChannel.register(selector, SelectionKey.OP_ACCEPT);
+		listenChannel.socket().bind(new InetSocketAddress(ip, port));
+	}
+
+	static boolean supportsReusePort() {
+		try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+			return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * The acceptor blocks in accept() on its own thread and never touches a
+	 * Selector; the reactor that gets the channel registers it on its own
+	 * thread through execute(), since register() from here would block against
+	 * a running select().
+	 */
+	private static void acceptLoop() {
+		Util.loger("Now accepting connections by..." + Thread.currentThread().getName());
+
+		int next = 0;
 		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				SocketChannel socketChannel = null;
+				try {
+					socketChannel = serverChannel.accept();
+					if (socketChannel == null)
+						continue;
+					socketChannel.configureBlocking(false);
+				} catch (ClosedChannelException e) {
+					break; // closeServer() from elsewhere
+				} catch (IOException e) {
+					// one bad connection or a full fd table must not stop the acceptor
+					metrics.errors.increment();
+					Log.error("accept failed: " + e);
+					closeQuietly(socketChannel);
+					if (isOutOfFiles(e))
+						backOff();
+					continue;
+				}
 
-			selector = Selector.open();
+				EPollServer reactor;
+				if (LEAST_LOADED) {
+					reactor = reactors[0];
+					for (int i = 1; i < reactors.length; i++) {
+						if (reactors[i].connections < reactor.connections)
+							reactor = reactors[i];
+					}
+				} else {
+					reactor = reactors[next];
+					next = (next + 1) % reactors.length;
+				}
 
-			serverChannel = ServerSocketChannel.open();
+				reactor.execute(reactor.registerTask(socketChannel));
+			}
+		} finally {
+			closeServer();
+		}
+	}
 
-			serverChannel.configureBlocking(false);
+	/**
+	 * EMFILE / ENFILE: accept() fails again right away until descriptors are
+	 * freed, so wait a little instead of spinning.
+	 */
+	private static boolean isOutOfFiles(IOException e) {
+		String message = e.getMessage();
+		return message != null && message.contains("Too many open files");
+	}
 
-			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-			// bind to the address
-			serverChannel.socket().bind(new InetSocketAddress(ADDRESS, PORT));
+	private static void backOff() {
+		try {
+			Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
 
+	private static void closeQuietly(SocketChannel socketChannel) {
+		if (socketChannel == null)
+			return;
+		try {
+			socketChannel.close();
 		} catch (IOException e) {
-			e.printStackTrace();
+			// ignore
 		}
 	}
 
 	@Override
 	/**
-	 * This is what is happening; we create a Selector object by calling the static
-	 * open method. We then create a channel also by calling its static open method,
-	 * specifically a ServerSocketChannel instance.
-	 * 
-	 * This is because ServerSocketChannel is selectable and good for a
-	 * stream-oriented listening socket.
-	 * 
+	 * This is what is happening; each reactor loops on its own Selector object.
+	 * New channels arrive from the acceptor as tasks and are registered here, on
+	 * the thread that owns the selector.
+	 *
 	 */
 	public void run() {
-		Util.loger("Now accepting connections by..." + Thread.currentThread().getName());
+		thread = Thread.currentThread();
+		Util.loger("Now serving connections by..." + thread.getName());
 
 		try {
 
 			while (!Thread.currentThread().isInterrupted()) {
 				long startPoint = System.currentTimeMillis();
-				selector.select(SELECT_TIMEOUT); // block here in the system to retrieve the events interested
-				Util.loger(startPoint, "seletor.select");
+
+				// from here on a new task needs a wakeup; one that came before is seen by isEmpty()
+				wakeupPending.set(false);
+				if (tasks.isEmpty() && SPIN_NANOS > 0) {
+					spinSelect();
+				} else if (tasks.isEmpty()) {
+					// block here in the system to retrieve the events interested, or until a timer is due
+					selector.select(selectTimeout(startPoint));
+				} else {
+					selector.selectNow();
+				}
+				Log.time(startPoint, "seletor.select");
+				metrics.selectWakeups.increment();
+
+				runTasks();
+				resubmit();
 
 				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
 
@@ -129,25 +355,32 @@ public class EPollServer implements Runnable {
 						continue;
 					}
 
+					long eventStart = System.nanoTime();
+
 					if (key.isAcceptable()) {
-						Util.loger("Accepting connection");
+						Log.debug("Accepting connection");
 						accept(key);
-
+						continue;
 					}
 
 					if (key.isWritable()) {
-						Util.loger("Writing...");
+						Log.debug("Writing...");
 						write(key);
-						counter++;
-						Util.loger("Connection Counter is::" + counter);
-		
+						if (Log.isDebug())
+							Log.debug("Connection Counter is::" + metrics.getMessagesOut());
+
 					}
 
-					if (key.isReadable()) {
-						Util.loger("Reading connection");
+					if (key.isValid() && key.isReadable()) {
+						Log.debug("Reading connection");
 						read(key);
 					}
+
+					metrics.eventTime.record(System.nanoTime() - eventStart);
 				}
+
+				flushDirty();
+				timers.expire(System.currentTimeMillis());
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -157,39 +390,193 @@ public class EPollServer implements Runnable {
 
 	}
 
+	/**
+	 * Spin, then yield, then park: selectNow() in a tight loop for SPIN_NANOS,
+	 * with Thread.yield() between polls for another YIELD_NANOS, and the usual
+	 * blocking select() once nothing turned up. A task arriving meanwhile ends
+	 * the spin as well.
+	 */
+	private int spinSelect() throws IOException {
+		long cpuStart = threadCpuTime();
+		long start = System.nanoTime();
+		try {
+			while (true) {
+				int ready = selector.selectNow();
+				if (ready > 0 || !tasks.isEmpty()) {
+					metrics.spinHits.increment();
+					return ready;
+				}
+				long spent = System.nanoTime() - start;
+				if (spent >= SPIN_NANOS + YIELD_NANOS)
+					break;
+				if (spent >= SPIN_NANOS)
+					Thread.yield();
+				else
+					Thread.onSpinWait();
+			}
+		} finally {
+			metrics.spinCpuNanos.add(threadCpuTime() - cpuStart);
+		}
+		return selector.select(selectTimeout(System.currentTimeMillis()));
+	}
+
+	/**
+	 * Until the next timer is due, or briefly while refused requests wait for
+	 * room at the worker stage.
+	 */
+	private long selectTimeout(long now) {
+		long timeout = timers.nextTimeout(now, SELECT_TIMEOUT);
+		return refused.isEmpty() ? timeout : Math.min(timeout, RESUBMIT_MILLIS);
+	}
+
+	private static long threadCpuTime() {
+		return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : 0;
+	}
+
+	/**
+	 * Runs task on this reactor's thread before its next select. Safe to call
+	 * from any thread; only the first task after the reactor went to sleep pays
+	 * for a selector.wakeup().
+	 */
+	void execute(Runnable task) {
+		tasks.offer(task);
+		if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true))
+			selector.wakeup();
+	}
+
+	private void runTasks() {
+		Runnable task;
+		for (int n = 0; n < MAX_TASKS_PER_LOOP && (task = tasks.poll()) != null; n++) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				metrics.errors.increment();
+				Log.error("task failed on reactor " + id + ": " + e);
+			}
+		}
+	}
+
+	private Runnable registerTask(final SocketChannel socketChannel) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				Log.debug("Accepting connection");
+				try {
+					register(socketChannel);
+				} catch (IOException e) {
+					metrics.errors.increment();
+					try {
+						socketChannel.close();
+					} catch (IOException ignored) {
+					}
+				}
+			}
+		};
+	}
+
 	private void accept(SelectionKey key) throws IOException {
 		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
 		SocketChannel socketChannel = serverSocketChannel.accept();
+		if (socketChannel == null)
+			return; // another reactor's socket won the connection
 		socketChannel.configureBlocking(false);
+		register(socketChannel);
+	}
 
-		socketChannel.register(selector, SelectionKey.OP_WRITE);
-		byte[] hello = new String("Hello from server").getBytes();
-		mesgCache.put(socketChannel, hello);
+	private void register(SocketChannel socketChannel) throws IOException {
+		Connection conn = new Connection(socketChannel, BUFFER_SIZE, metrics);
+		if (FrameDecoder.FORMAT != FrameDecoder.Format.NONE)
+			conn.useFrames(FrameDecoder.create());
+		conn.queue(ByteBuffer.wrap(Connection.HELLO));
+		conn.key = socketChannel.register(selector, SelectionKey.OP_WRITE, conn);
+		connections++;
+		if (Connection.hasTimeouts())
+			schedule(conn);
 	}
 
 	/**
 	 * SocketChannel receiving back from the key.channel() is the same channel that
-	 * was used to register the selector in the accept() method. later, we might
-	 * register to write from the read() method (for example).
+	 * was used to register the selector in the register() method. later, we
+	 * might register to write from the read() method (for example).
 	 */
 	private void write(SelectionKey key) throws IOException {
 		SocketChannel channel = (SocketChannel) key.channel();
+		Connection conn = (Connection) key.attachment();
 
-		byte[] data = mesgCache.get(channel);
-		mesgCache.remove(channel);
+		try {
+			if (!conn.flush() && Connection.WRITE_STALL_TIMEOUT > 0)
+				schedule(conn); // the client stopped reading, a stall deadline may be due first
+		} catch (IOException e) {
+			Log.debug("Writing problem, closing connection");
+			metrics.errors.increment();
+			close(key, channel);
+			return;
+		}
+		if (Log.isDebug())
+			Log.debug("Data write out length is:" + conn.bytesOut);
 
-		channel.write(ByteBuffer.wrap(data));
-	Util.logd("Data write out length is:" + data.length );
+		// OP_WRITE stays on until the outbound queue drained
+		key.interestOps(conn.interestOps());
 
-		key.interestOps(SelectionKey.OP_READ);
+	}
 
+	private void close(SelectionKey key, SocketChannel channel) throws IOException {
+		key.cancel();
+		channel.close();
+		Connection conn = (Connection) key.attachment();
+		timers.cancel(conn);
+		conn.release();
+		connections--;
+	}
+
+	/**
+	 * Puts the connection on the wheel for its nearest deadline. Only an earlier
+	 * deadline moves a timer that is already set; a later one is found lazily,
+	 * when the timer fires.
+	 */
+	private void schedule(Connection conn) {
+		long deadline = conn.nextDeadline();
+		if (deadline == Long.MAX_VALUE)
+			timers.cancel(conn);
+		else if (!conn.isScheduled() || deadline < conn.expiresAt)
+			timers.schedule(conn, deadline);
+	}
+
+	private void expired(Connection conn, long now) {
+		long deadline = conn.nextDeadline();
+		if (deadline > now) {
+			if (deadline != Long.MAX_VALUE)
+				timers.schedule(conn, deadline); // there was traffic since, look again later
+			return;
+		}
+
+		if (Log.isDebug())
+			Log.debug("Timed out, closing " + conn);
+		metrics.timedOut.increment();
+		try {
+			close(conn.channel.keyFor(selector), conn.channel);
+		} catch (IOException e) {
+			metrics.errors.increment();
+		}
 	}
 
 	private void closeConnection() {
-		Util.loger("Closing server down");
+		Util.loger("Closing reactor " + id + " down");
 		if (selector != null) {
 			try {
 				selector.close();
+				if (listenChannel != null)
+					listenChannel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static void closeServer() {
+		Util.loger("Closing server down");
+		if (serverChannel != null) {
+			try {
 				serverChannel.socket().close();
 				serverChannel.close();
 			} catch (IOException e) {
@@ -200,46 +587,207 @@ public class EPollServer implements Runnable {
 
 	private void read(SelectionKey key) throws IOException {
 		SocketChannel channel = (SocketChannel) key.channel();
-		ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-		readBuffer.clear();
+		Connection conn = (Connection) key.attachment();
+		ByteBuffer readBuffer = conn.inbound;
+		if (conn.decoder == null)
+			readBuffer.clear().limit(BUFFER_SIZE); // the pooled buffer may be bigger
 		int read;
 		try {
 			read = channel.read(readBuffer);
 		} catch (IOException e) {
-			Util.loger("Reading problem, closing connection");
-			key.cancel();
-			channel.close();
+			Log.debug("Reading problem, closing connection");
+			metrics.errors.increment();
+			close(key, channel);
 			return;
 		}
 		if (read == -1) {
-			Util.loger("Nothing was there to be read, closing connection");
-			channel.close();
-			key.cancel();
+			Log.debug("Nothing was there to be read, closing connection");
+			close(key, channel);
 			return;
 		}
+		conn.readDone(read);
 
 		readBuffer.flip();
 
-		byte[] data = new byte[BUFFER_SIZE];
-		// read only length can accept, otherwise, out-of-bound exception for data..
-		read = read < BUFFER_SIZE ? read : (BUFFER_SIZE - 1);
+		// Util.loger("Received: " + read + " bytes");
+
+		if (conn.decoder != null) {
+			decode(key, conn, readBuffer);
+			return;
+		}
+		echo(key, conn, readBuffer);
+	}
+
+	/**
+	 * Framed mode: every complete frame in the buffer is echoed, a partial one
+	 * stays in conn.inbound for the next read.
+	 */
+	private void decode(SelectionKey key, Connection conn, ByteBuffer data) throws IOException {
+		try {
+			conn.inbound = conn.decoder.decode(conn, data, frameHandler);
+		} catch (ProtocolException e) {
+			Log.warn("Closing connection: " + e.getMessage());
+			metrics.errors.increment();
+			close(key, conn.channel);
+			return;
+		}
+		markDirty(conn);
+	}
 
-		readBuffer.get(data, 0, read);
+	/**
+	 * Replies are not written where they are produced: the connection goes on
+	 * the dirty list once, however many requests one read held, and
+	 * flushDirty() writes it at the end of the loop iteration.
+	 */
+	private void markDirty(Connection conn) {
+		if (!conn.dirty) {
+			conn.dirty = true;
+			dirty.add(conn);
+		}
+	}
 
-		// Util.loger("Received: " + new String(data));
+	/**
+	 * One gathering write per dirty connection; OP_WRITE is only turned on for
+	 * a connection the kernel did not take everything from.
+	 */
+	private void flushDirty() throws IOException {
+		for (int i = 0; i < dirty.size(); i++) {
+			Connection conn = dirty.get(i);
+			conn.dirty = false;
+			if (conn.key.isValid()) // not closed since
+				write(conn.key);
+		}
+		dirty.clear();
+	}
 
-		echo(key, data);
+	/**
+	 * The frame is a view of the inbound buffer, so the echo is a copy into a
+	 * pooled buffer of its own, zero padded to BUFFER_SIZE unless EXACT_ECHO.
+	 */
+	private void echoFrame(Connection conn, ByteBuffer frame, int headerLength) {
+		conn.frameDone();
+		int size = EXACT_ECHO ? frame.remaining() : Math.max(frame.remaining(), BUFFER_SIZE);
+		ByteBuffer reply = BufferPool.acquire(size);
+		reply.put(frame);
+		BufferPool.pad(reply);
+		reply.flip();
+		reply(conn, reply);
 	}
 
 	/**
-	 * Channel is a two way communication linked with Buffer .
-	 * 
+	 * Channel is a two way communication linked with Buffer . With EXACT_ECHO the
+	 * buffer just read goes straight back out; otherwise the reply is a pooled
+	 * buffer of BUFFER_SIZE, zero padded as the byte[] used to be.
+	 *
 	 */
 
-	private void echo(SelectionKey key, byte[] data) {
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-		mesgCache.put(socketChannel, data);
-		key.interestOps(SelectionKey.OP_WRITE);
+	private void echo(SelectionKey key, Connection conn, ByteBuffer data) {
+		ByteBuffer reply;
+		if (EXACT_ECHO) {
+			reply = conn.takeInbound();
+		} else {
+			reply = BufferPool.acquire(BUFFER_SIZE);
+			reply.put(data);
+			BufferPool.pad(reply);
+			reply.flip();
+		}
+		reply(conn, reply);
+
+		markDirty(conn);
+	}
+
+	/**
+	 * Queues the reply, or with a worker stage first sends the request through
+	 * it. The reactor never runs a task itself, that would stall every one of
+	 * its connections: a request the full stage refused is kept on the refused
+	 * list, and its client is not read from until resubmit() got it in.
+	 */
+	private void reply(Connection conn, ByteBuffer reply) {
+		if (stage == null) {
+			conn.queue(reply);
+			return;
+		}
+
+		StageTask task = new StageTask(this, conn, reply);
+		if (conn.staged == null)
+			conn.staged = new ArrayDeque<WorkerStage.Task>();
+		conn.staged.addLast(task);
+		// behind the ones already refused, so the stage takes them in order
+		if (!refused.isEmpty() || !stage.submit(task)) {
+			conn.refused++;
+			refused.addLast(task);
+		}
+	}
+
+	/**
+	 * Offers the refused requests to the stage again, oldest first, until it is
+	 * full once more; a connection with none left waiting is read from again.
+	 */
+	private void resubmit() {
+		StageTask task;
+		while ((task = refused.peekFirst()) != null) {
+			Connection conn = task.conn;
+			if (!conn.key.isValid()) {
+				// closed meanwhile, the request never made it to a worker
+				refused.pollFirst();
+				BufferPool.release(task.data);
+				continue;
+			}
+			if (!stage.submit(task))
+				return;
+			refused.pollFirst();
+			if (--conn.refused == 0)
+				markDirty(conn); // flushDirty() turns OP_READ back on
+		}
+	}
+
+	/**
+	 * One request at the worker stage: work() runs on a worker thread, then
+	 * complete() on the owning reactor queues every reply that is ready in
+	 * request order.
+	 */
+	static final class StageTask extends WorkerStage.Task {
+		final EPollServer reactor;
+		final Connection conn;
+		final ByteBuffer data;
+		boolean done; // reactor thread only
+
+		StageTask(EPollServer reactor, Connection conn, ByteBuffer data) {
+			this.reactor = reactor;
+			this.conn = conn;
+			this.data = data;
+		}
+
+		@Override
+		public void run() {
+			work();
+			reactor.execute(this::complete);
+		}
+
+		void work() {
+			Util.commonTask(data, TASK_KEY);
+		}
+
+		void complete() {
+			done = true;
+			ArrayDeque<WorkerStage.Task> staged = conn.staged;
+
+			if (!conn.key.isValid()) {
+				// closed meanwhile: the finished ones are ours to give back
+				for (Iterator<WorkerStage.Task> it = staged.iterator(); it.hasNext();) {
+					StageTask task = (StageTask) it.next();
+					if (task.done) {
+						it.remove();
+						BufferPool.release(task.data);
+					}
+				}
+				return;
+			}
+
+			while (!staged.isEmpty() && ((StageTask) staged.peekFirst()).done)
+				conn.queue(((StageTask) staged.pollFirst()).data);
+			reactor.markDirty(conn);
+		}
 	}
 
 	static String getProvider() {
@@ -251,4 +799,3 @@ public class EPollServer implements Runnable {
 	}
 
 }
-
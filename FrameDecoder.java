@@ -0,0 +1,162 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder for length-prefixed messages on a Connection, so a
+ * message split over several reads, or several messages in one read, come out
+ * as whole frames.
+ *
+ * The connection's inbound buffer is the cumulative buffer: reads append to it,
+ * decode() hands every complete frame to the Handler as a view of that buffer
+ * (no copy, no allocation) and compacts what is left of a partial frame to the
+ * front. A frame bigger than the buffer moves it to a bigger pooled buffer, up
+ * to MAX_FRAME.
+ *
+ * Formats: BINARY is a 4 byte big-endian payload length; LENGTH_TEXT is the
+ * legacy SuperClient header "Length:" + decimal payload length, with the digits
+ * running straight into the payload.
+ *
+ * How-to: -frame=none|binary|text on the ServerManager command line.
+ */
+public final class FrameDecoder {
+
+	enum Format {
+		NONE, BINARY, LENGTH_TEXT
+	}
+
+	static Format FORMAT = Format.NONE;
+	static int MAX_FRAME = 1 << 20; // header included
+
+	private static final byte[] TEXT_HEADER = "Length:".getBytes();
+	private static final int MAX_DIGITS = 10;
+
+	interface Handler {
+		/**
+		 * @param frame         the whole frame as sent, header included; only
+		 *                      valid during the call, copy what you keep
+		 * @param headerLength  bytes of header at the start of frame
+		 */
+		void onFrame(Connection conn, ByteBuffer frame, int headerLength);
+	}
+
+	private final Format format;
+	private final int maxFrame;
+
+	private ByteBuffer view; // duplicate of the current inbound buffer, reused for every frame
+	private ByteBuffer viewOf;
+
+	// header of the frame at the front of the buffer, once parsed
+	private int headerLength = -1;
+	private int payloadLength;
+
+	FrameDecoder(Format format, int maxFrame) {
+		this.format = format;
+		this.maxFrame = maxFrame;
+	}
+
+	static FrameDecoder create() {
+		return FORMAT == Format.NONE ? null : new FrameDecoder(FORMAT, MAX_FRAME);
+	}
+
+	static Format parseFormat(String name) {
+		if (name.equalsIgnoreCase("binary"))
+			return Format.BINARY;
+		if (name.equalsIgnoreCase("text") || name.equalsIgnoreCase("length"))
+			return Format.LENGTH_TEXT;
+		if (name.equalsIgnoreCase("none"))
+			return Format.NONE;
+		return null;
+	}
+
+	/**
+	 * Hands every complete frame in buf to the handler, then leaves the buffer
+	 * ready for the next read.
+	 *
+	 * @param buf flipped: position..limit are the bytes not decoded yet
+	 * @return the buffer to read into next: buf compacted, or a bigger pooled
+	 *         buffer holding the partial frame (buf is then released)
+	 * @throws ProtocolException on a bad header or a frame over the maximum
+	 */
+	ByteBuffer decode(Connection conn, ByteBuffer buf, Handler handler) throws ProtocolException {
+		while (true) {
+			int start = buf.position();
+			if (headerLength < 0 && !parseHeader(buf, start))
+				break;
+
+			int frameLength = headerLength + payloadLength;
+			if (buf.remaining() < frameLength) {
+				if (frameLength > buf.capacity())
+					buf = grow(buf, frameLength);
+				break;
+			}
+
+			if (viewOf != buf) {
+				view = buf.duplicate();
+				viewOf = buf;
+			}
+			view.limit(start + frameLength).position(start);
+			handler.onFrame(conn, view, headerLength);
+
+			buf.position(start + frameLength);
+			headerLength = -1;
+		}
+
+		if (buf.hasRemaining())
+			buf.compact();
+		else
+			buf.clear();
+		return buf;
+	}
+
+	/**
+	 * @return false if the header is not complete yet
+	 */
+	private boolean parseHeader(ByteBuffer buf, int start) throws ProtocolException {
+		int available = buf.remaining();
+		long length;
+		int header;
+
+		if (format == Format.BINARY) {
+			if (available < 4)
+				return false;
+			length = buf.getInt(start) & 0xFFFFFFFFL;
+			header = 4;
+		} else {
+			int prefix = TEXT_HEADER.length;
+			for (int i = 0; i < Math.min(prefix, available); i++) {
+				if (buf.get(start + i) != TEXT_HEADER[i])
+					throw new ProtocolException("bad frame header, expected \"Length:\"");
+			}
+			length = 0;
+			int digits = 0;
+			while (true) {
+				if (prefix + digits >= available)
+					return false; // the digits may go on in the next read
+				byte b = buf.get(start + prefix + digits);
+				if (b < '0' || b > '9')
+					break;
+				length = length * 10 + (b - '0');
+				if (++digits > MAX_DIGITS)
+					throw new ProtocolException("bad frame header, length too long");
+			}
+			if (digits == 0)
+				throw new ProtocolException("bad frame header, no length");
+			header = prefix + digits;
+		}
+
+		if (header + length > maxFrame)
+			throw new ProtocolException("frame of " + (header + length) + " bytes is over the maximum of " + maxFrame);
+		headerLength = header;
+		payloadLength = (int) length;
+		return true;
+	}
+
+	private ByteBuffer grow(ByteBuffer buf, int frameLength) {
+		ByteBuffer bigger = BufferPool.acquire(frameLength);
+		bigger.limit(bigger.capacity());
+		bigger.put(buf);
+		bigger.flip();
+		BufferPool.release(buf);
+		return bigger;
+	}
+}
@@ -0,0 +1,84 @@
+import java.util.Arrays;
+
+/**
+ * Single-writer latency histogram: the buckets of LatencyHistogram (log-linear,
+ * under 3% error) in a plain long[], for a thread that owns its own, like a
+ * LoadGenerator selector thread. Recording is an index and an increment, no
+ * atomics.
+ *
+ * Read it only from the writer or after handing it over (a join, a swap);
+ * histograms of several threads are combined with add().
+ */
+public final class Histogram {
+
+	private final long[] counts = new long[LatencyHistogram.BUCKETS];
+	private long total;
+	private long sum;
+	private long max;
+
+	void record(long value) {
+		counts[LatencyHistogram.index(value)]++;
+		total++;
+		sum += value;
+		if (value > max)
+			max = value;
+	}
+
+	/**
+	 * Merges other into this one.
+	 */
+	void add(Histogram other) {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+		total += other.total;
+		sum += other.sum;
+		if (other.max > max)
+			max = other.max;
+	}
+
+	long count() {
+		return total;
+	}
+
+	long max() {
+		return max;
+	}
+
+	double mean() {
+		return total == 0 ? 0 : (double) sum / total;
+	}
+
+	/**
+	 * @param percentile 0..100
+	 * @return the upper bound of the bucket holding that percentile, 0 if empty
+	 */
+	long percentile(double percentile) {
+		if (total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(percentile / 100.0 * total);
+		rank = Math.max(1, Math.min(rank, total));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(LatencyHistogram.highestValue(i), max);
+		}
+		return max;
+	}
+
+	void reset() {
+		Arrays.fill(counts, 0);
+		total = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	/**
+	 * p50/p99/p99.9/max of nanosecond values, in micro-seconds.
+	 */
+	String summary() {
+		return String.format("n=%d p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus", total, percentile(50) / 1000.0,
+				percentile(99) / 1000.0, percentile(99.9) / 1000.0, max / 1000.0);
+	}
+}
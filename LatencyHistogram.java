@@ -0,0 +1,146 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram, safe to record into from any number of threads.
+ *
+ * Striped like a LongAdder: every thread records into a stripe of its own
+ * (reactors, workers), picked round-robin once per thread, so reactors on
+ * different cores do not fight over one cache line; the stripes are only merged
+ * when a percentile or count is read, for example by JMX.
+ *
+ * Buckets are log-linear in the style of HdrHistogram: values below 2^SUB_BITS
+ * are exact, above that every power of two is split into 2^SUB_BITS buckets, so
+ * the error of any percentile is under 1/2^SUB_BITS (about 3%). Values are
+ * plain longs, in whatever unit the caller records (nanoseconds here).
+ *
+ * The static index()/lowestValue() are shared with the single-writer Histogram.
+ */
+public class LatencyHistogram {
+
+	static final int SUB_BITS = 5;
+	static final int SUB = 1 << SUB_BITS;
+	static final int MAX_SHIFT = 40 - SUB_BITS; // values are capped at 2^40 (about 18 minutes in ns)
+	static final int BUCKETS = SUB + (MAX_SHIFT + 1) * SUB;
+	static final long MAX_VALUE = (1L << 40) - 1;
+
+	static final int STRIPES = Math.min(16,
+			Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1);
+
+	private static final AtomicInteger nextStripe = new AtomicInteger();
+	private static final ThreadLocal<Integer> stripeOfThread = new ThreadLocal<Integer>() {
+		@Override
+		protected Integer initialValue() {
+			return nextStripe.getAndIncrement() & (STRIPES - 1);
+		}
+	};
+
+	// a stripe is one array: the buckets, then count, sum and max, then padding
+	// so the next stripe's array does not share their cache line
+	private static final int TOTAL = BUCKETS;
+	private static final int SUM = BUCKETS + 1;
+	private static final int MAX = BUCKETS + 2;
+	private static final int CELLS = BUCKETS + 3 + 8;
+
+	// atomics only for the rare threads that share a stripe
+	private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+	LatencyHistogram() {
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new AtomicLongArray(CELLS);
+	}
+
+	static int index(long value) {
+		if (value < SUB)
+			return value < 0 ? 0 : (int) value;
+		if (value > MAX_VALUE)
+			value = MAX_VALUE;
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int shift = msb - SUB_BITS;
+		int sub = (int) (value >>> shift) - SUB;
+		return SUB + shift * SUB + sub;
+	}
+
+	static long lowestValue(int index) {
+		if (index < SUB)
+			return index;
+		int shift = (index - SUB) / SUB;
+		int sub = (index - SUB) % SUB;
+		return ((long) (SUB + sub)) << shift;
+	}
+
+	static long highestValue(int index) {
+		return index + 1 < BUCKETS ? lowestValue(index + 1) - 1 : MAX_VALUE;
+	}
+
+	void record(long value) {
+		AtomicLongArray stripe = stripes[stripeOfThread.get()];
+		stripe.incrementAndGet(index(value));
+		stripe.incrementAndGet(TOTAL);
+		stripe.addAndGet(SUM, value);
+
+		long m;
+		while (value > (m = stripe.get(MAX)) && !stripe.compareAndSet(MAX, m, value))
+			;
+	}
+
+	long count() {
+		long n = 0;
+		for (AtomicLongArray stripe : stripes)
+			n += stripe.get(TOTAL);
+		return n;
+	}
+
+	long max() {
+		long m = 0;
+		for (AtomicLongArray stripe : stripes)
+			m = Math.max(m, stripe.get(MAX));
+		return m;
+	}
+
+	double mean() {
+		long n = 0;
+		long total = 0;
+		for (AtomicLongArray stripe : stripes) {
+			n += stripe.get(TOTAL);
+			total += stripe.get(SUM);
+		}
+		return n == 0 ? 0 : (double) total / n;
+	}
+
+	/**
+	 * @param percentile 0..100
+	 * @return the upper bound of the bucket holding that percentile, 0 if empty
+	 */
+	long percentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long n = 0;
+		for (AtomicLongArray stripe : stripes) {
+			for (int i = 0; i < BUCKETS; i++) {
+				long c = stripe.get(i);
+				snapshot[i] += c;
+				n += c;
+			}
+		}
+		if (n == 0)
+			return 0;
+
+		long max = max();
+		long rank = (long) Math.ceil(percentile / 100.0 * n);
+		rank = Math.max(1, Math.min(rank, n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(highestValue(i), max);
+		}
+		return max;
+	}
+
+	void reset() {
+		for (AtomicLongArray stripe : stripes) {
+			for (int i = 0; i < CELLS; i++)
+				stripe.set(i, 0);
+		}
+	}
+}
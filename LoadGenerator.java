@@ -0,0 +1,466 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Load generator for the echo servers: a handful of selector threads drive all
+ * the connections, instead of SuperClient's platform thread and 51 KB buffers
+ * per connection.
+ *
+ * Every selector thread opens its share of the connections with non-blocking
+ * connects: connection k of the whole run is due at start + k * INTERVAL, on the
+ * thread k % THREADS. The ramp and the connection lifetimes (TTL, from the
+ * completed connect) are timers in the thread's TimingWheel, no sleeps, so a
+ * late loop catches up instead of drifting.
+ *
+ * A connection skips the "Hello from server" and then sends payloads from
+ * Payload. Closed-loop (the default), it waits for each echo before it sends the
+ * next. Open-loop (-rate=), it sends on a schedule of its own, RATE requests a
+ * second with constant or Poisson (-arrival=poisson) gaps, whether the replies
+ * keep up or not. Requests go into a per-connection FIFO with their intended
+ * send time, and the echo of each one (exact echo, the server default) is timed
+ * from that intended time, not from when the write actually happened. A stalled
+ * server then shows up as latency of every request it held back, instead of
+ * quietly lowering the send rate (coordinated omission).
+ *
+ * At its TTL a connection sends no new requests and gives the ones still out
+ * up to DRAIN (-drain=) to come back. Whatever is left when it closes, at the
+ * end of the drain or on an error, is recorded with its latency so far and
+ * counted as an error, so the slowest requests are not left out of the
+ * percentiles.
+ *
+ * Each selector thread records into its own Recorder: a single-writer Histogram
+ * of the latencies (one per connection would cost 9 KB each) and plain
+ * counters. The Reporter collects them once a second into the time series and
+ * the end-of-run summary, with p50/p99/p99.9/max.
+ * Payloads are views of Payload's shared buffer and the read buffer is one per
+ * thread, so a connection costs a few hundred bytes and no garbage per request.
+ *
+ * Usage: SuperClient {IP} {PORT} {INTERVAL} {TTL} [-selectors=n] [-conns=n]
+ * [-rate=req/s per connection] [-arrival=constant|poisson] [-drain=ms] plus
+ * the Payload options; INTERVAL 0 opens connections as fast as possible.
+ */
+public class LoadGenerator {
+
+	static int INTERVAL = 100; // milli-sec between two connections of the run
+	static int TTL = 1000 * 30; // milli-sec a connection lives
+	static int DRAIN = 1000; // milli-sec after the TTL for the replies still due
+	static int THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+	static long CONNECTIONS = Long.MAX_VALUE; // total to open over the run
+	static double RATE = 0; // open-loop requests a second per connection, 0 for closed-loop
+	static Arrival ARRIVAL = Arrival.CONSTANT;
+	static long TICK_MILLIS = 1;
+	static int WHEEL_SLOTS = 1024;
+	static int READ_BUFFER = 64 * 1024;
+	static int MAX_OPENS_PER_LOOP = 256; // INTERVAL 0: connects started per iteration
+
+	enum Arrival {
+		CONSTANT, POISSON
+	}
+
+	/**
+	 * Anything with a deadline in a Driver's wheel.
+	 */
+	abstract static class Timer extends TimingWheel.Node {
+		abstract void expired(long now);
+	}
+
+	/**
+	 * One client connection, owned by its Driver.
+	 */
+	static final class Conn extends Timer {
+		final Driver driver;
+		final SocketChannel channel;
+		final Payload.Cursor cursor;
+		SelectionKey key;
+		boolean closed;
+		int hello; // bytes of the hello still to skip
+		long closeAt; // TTL deadline, ms
+
+		// requests in order: [first, started) written (or being written) and
+		// awaiting their echo, [started, end) due but not written yet
+		long[] intended = new long[4]; // intended send time, ns
+		int[] sizes = new int[4];
+		long first;
+		long started;
+		long end;
+		ByteBuffer out; // the request being written, a view owned by cursor
+		long inRemaining; // echo bytes still due for request first
+		long nextSend; // open-loop: intended time of the next request, ns
+
+		Conn(Driver driver, SocketChannel channel, Payload.Cursor cursor) {
+			this.driver = driver;
+			this.channel = channel;
+			this.cursor = cursor;
+		}
+
+		@Override
+		void expired(long now) {
+			driver.expired(this, now);
+		}
+
+		void enqueue(long intendedAt) {
+			if (end - first == intended.length) {
+				int n = intended.length;
+				long[] times = new long[n * 2];
+				int[] lengths = new int[n * 2];
+				for (long i = first; i < end; i++) {
+					times[(int) (i & (2 * n - 1))] = intended[(int) (i & (n - 1))];
+					lengths[(int) (i & (2 * n - 1))] = sizes[(int) (i & (n - 1))];
+				}
+				intended = times;
+				sizes = lengths;
+			}
+			intended[(int) (end++ & (intended.length - 1))] = intendedAt;
+		}
+	}
+
+	/**
+	 * A selector thread with its share of the connections.
+	 */
+	static final class Driver extends Timer implements Runnable {
+		final int index;
+		final InetSocketAddress address;
+		final Payload payload;
+		final long start;
+		final Selector selector;
+		final TimingWheel<Timer> timers = new TimingWheel<Timer>(TICK_MILLIS, WHEEL_SLOTS,
+				new TimingWheel.Handler<Timer>() {
+					@Override
+					public void expired(Timer timer, long now) {
+						timer.expired(now);
+					}
+				});
+		final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER);
+		final Recorder recorder = Reporter.recorder();
+		Recorder.Interval stats; // of the current loop iteration
+		final Random random = new Random();
+
+		long nextOpen; // index of this thread's next connection in the whole run
+		int open;
+
+		Driver(int index, InetSocketAddress address, Payload payload, long start) throws IOException {
+			this.index = index;
+			this.address = address;
+			this.payload = payload;
+			this.start = start;
+			this.selector = Selector.open();
+			this.nextOpen = index;
+		}
+
+		/**
+		 * The ramp: opens every connection that is due, then waits for the next.
+		 */
+		@Override
+		void expired(long now) {
+			int started = 0;
+			while (nextOpen < CONNECTIONS && dueAt(nextOpen) <= now && started < MAX_OPENS_PER_LOOP) {
+				openConnection(nextOpen);
+				nextOpen += THREADS;
+				started++;
+			}
+			if (nextOpen < CONNECTIONS)
+				timers.schedule(this, Math.max(dueAt(nextOpen), now));
+		}
+
+		private long dueAt(long k) {
+			return start + k * LoadGenerator.INTERVAL;
+		}
+
+		private void openConnection(long k) {
+			SocketChannel channel = null;
+			Conn conn = null;
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				conn = new Conn(this, channel, payload.cursor((int) k));
+				boolean done = channel.connect(address);
+				conn.key = channel.register(selector, done ? 0 : SelectionKey.OP_CONNECT, conn);
+				stats.opened++;
+				open++;
+				if (done)
+					connected(conn);
+			} catch (IOException e) {
+				stats.errors++;
+				if (conn != null && conn.key != null) {
+					close(conn);
+				} else if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException ignored) {
+					}
+				}
+			}
+		}
+
+		private void connected(Conn conn) throws IOException {
+			conn.hello = Connection.HELLO.length;
+			conn.closeAt = System.currentTimeMillis() + LoadGenerator.TTL;
+			conn.nextSend = System.nanoTime();
+			if (RATE > 0) {
+				expired(conn, System.currentTimeMillis());
+			} else {
+				timers.schedule(conn, conn.closeAt);
+				conn.enqueue(conn.nextSend);
+				write(conn);
+			}
+		}
+
+		/**
+		 * TTL, and open-loop: queues every request whose intended time has come.
+		 */
+		void expired(Conn conn, long now) {
+			if (now >= conn.closeAt) {
+				// no new requests past the TTL, only the drain of those still due
+				if (conn.first == conn.end || now >= conn.closeAt + DRAIN)
+					close(conn);
+				else
+					timers.schedule(conn, conn.closeAt + DRAIN);
+				return;
+			}
+			if (RATE <= 0) {
+				timers.schedule(conn, conn.closeAt);
+				return;
+			}
+
+			long t = System.nanoTime();
+			while (conn.nextSend <= t) {
+				conn.enqueue(conn.nextSend);
+				conn.nextSend += gap();
+			}
+			try {
+				write(conn);
+			} catch (IOException e) {
+				stats.errors++;
+				close(conn);
+				return;
+			}
+			long wait = (conn.nextSend - t + 999999) / 1000000;
+			timers.schedule(conn, Math.min(conn.closeAt, now + wait));
+		}
+
+		/**
+		 * @return ns to the next open-loop request of a connection
+		 */
+		private long gap() {
+			double mean = 1e9 / RATE;
+			if (ARRIVAL == Arrival.POISSON)
+				return (long) (-Math.log(1.0 - random.nextDouble()) * mean);
+			return (long) mean;
+		}
+
+		/**
+		 * Writes queued requests until they are all out or the socket is full.
+		 */
+		private void write(Conn conn) throws IOException {
+			while (true) {
+				if (conn.out == null) {
+					if (conn.started == conn.end)
+						break;
+					conn.out = conn.cursor.next();
+					int idx = (int) (conn.started & (conn.sizes.length - 1));
+					conn.sizes[idx] = conn.out.remaining();
+					if (conn.started == conn.first)
+						conn.inRemaining = conn.sizes[idx];
+					conn.started++;
+				}
+				stats.bytesOut += conn.channel.write(conn.out);
+				if (conn.out.hasRemaining())
+					break;
+				conn.out = null;
+			}
+			conn.key.interestOps(conn.out != null ? SelectionKey.OP_WRITE | SelectionKey.OP_READ
+					: SelectionKey.OP_READ);
+		}
+
+		private void read(Conn conn) throws IOException {
+			int n;
+			while ((n = conn.channel.read(readBuffer)) > 0) {
+				stats.bytesIn += n;
+				readBuffer.clear();
+				received(conn, n, System.nanoTime());
+			}
+			if (n < 0) {
+				close(conn);
+				return;
+			}
+			if (conn.first == conn.end && System.currentTimeMillis() >= conn.closeAt) {
+				close(conn); // drained
+				return;
+			}
+			if (RATE <= 0 && conn.first == conn.end) {
+				conn.enqueue(System.nanoTime());
+				write(conn);
+			}
+		}
+
+		/**
+		 * Matches n echoed bytes against the oldest requests and records the
+		 * latency of each one completed.
+		 */
+		private void received(Conn conn, int n, long now) {
+			int skip = Math.min(n, conn.hello);
+			conn.hello -= skip;
+			n -= skip;
+			while (n > 0 && conn.first < conn.started) {
+				int take = (int) Math.min(n, conn.inRemaining);
+				conn.inRemaining -= take;
+				n -= take;
+				if (conn.inRemaining > 0)
+					break;
+
+				// from the intended send time
+				stats.latency.record(now - conn.intended[(int) (conn.first & (conn.intended.length - 1))]);
+				stats.requests++;
+				conn.first++;
+				if (conn.first < conn.started)
+					conn.inRemaining = conn.sizes[(int) (conn.first & (conn.sizes.length - 1))];
+			}
+		}
+
+		void close(Conn conn) {
+			// not channel.isOpen(): a failed finishConnect() closes the channel itself
+			if (conn.closed)
+				return;
+			conn.closed = true;
+
+			// requests still due: failed, with the time they waited so far
+			long now = System.nanoTime();
+			for (long i = conn.first; i < conn.end; i++) {
+				stats.latency.record(now - conn.intended[(int) (i & (conn.intended.length - 1))]);
+				stats.errors++;
+			}
+			conn.first = conn.end;
+
+			timers.cancel(conn);
+			conn.key.cancel();
+			try {
+				conn.channel.close();
+			} catch (IOException ignored) {
+			}
+			stats.closed++;
+			open--;
+		}
+
+		@Override
+		public void run() {
+			timers.schedule(this, dueAt(nextOpen));
+			while (nextOpen < CONNECTIONS || open > 0) {
+				try {
+					long now = System.currentTimeMillis();
+					selector.select(timers.nextTimeout(now, 100));
+				} catch (IOException e) {
+					Util.loger(Thread.currentThread().getName() + " select failed: " + e);
+					break;
+				}
+
+				// end() only after a begin(), or the Reporter waits for it forever
+				stats = recorder.begin();
+				try {
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						Conn conn = (Conn) key.attachment();
+						try {
+							if (!key.isValid())
+								continue;
+							if (key.isConnectable()) {
+								conn.channel.finishConnect();
+								connected(conn);
+								continue;
+							}
+							if (key.isWritable())
+								write(conn);
+							if (key.isValid() && key.isReadable())
+								read(conn);
+						} catch (IOException e) {
+							stats.errors++;
+							close(conn);
+						}
+					}
+
+					timers.expire(System.currentTimeMillis());
+				} finally {
+					recorder.end();
+				}
+			}
+			recorder.retire();
+		}
+	}
+
+	/**
+	 * Runs the load on THREADS selector threads, reported by the Reporter;
+	 * returns when CONNECTIONS have been opened and closed again.
+	 */
+	public static void execute(String ip, int port, int interval, int ttl) throws IOException {
+
+		INTERVAL = interval;
+		TTL = ttl;
+		InetSocketAddress address = new InetSocketAddress(ip, port);
+		Payload payload = Payload.create();
+		Util.loger("LoadGenerator to " + address + ": " + THREADS + " selector threads, a connection every "
+				+ INTERVAL + " ms, TTL " + TTL + " ms, "
+				+ (RATE > 0 ? "open-loop " + RATE + " req/s per connection, " + ARRIVAL + " arrivals, "
+						: "closed-loop, ")
+				+ payload);
+
+		Reporter.start("LoadGenerator");
+		long start = System.currentTimeMillis();
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			threads[i] = new Thread(new Driver(i, address, payload, start), "LoadGenerator-" + (i + 1));
+			threads[i].start();
+		}
+
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		Reporter.finish();
+	}
+
+	/**
+	 * Optional arguments: -selectors=, -conns=, -rate=, -arrival=, -drain=.
+	 *
+	 * @return false if arg is not a load generator option
+	 */
+	static boolean option(String arg) {
+
+		String selectors = "-selectors=";
+		String conns = "-conns=";
+		String rate = "-rate=";
+		String arrival = "-arrival=";
+		String drain = "-drain=";
+
+		if (arg.startsWith(selectors)) {
+			THREADS = Math.max(1, Integer.parseInt(arg.substring(selectors.length())));
+		} else if (arg.startsWith(conns)) {
+			CONNECTIONS = Long.parseLong(arg.substring(conns.length()));
+		} else if (arg.startsWith(rate)) {
+			RATE = Double.parseDouble(arg.substring(rate.length()));
+		} else if (arg.startsWith(arrival)) {
+			try {
+				ARRIVAL = Arrival.valueOf(arg.substring(arrival.length()).toUpperCase());
+			} catch (IllegalArgumentException e) {
+				Util.loger("Illegal arguments, need " + arrival + "<constant|poisson>");
+			}
+		} else if (arg.startsWith(drain)) {
+			DRAIN = Math.max(0, Integer.parseInt(arg.substring(drain.length())));
+		} else {
+			return false;
+		}
+		return true;
+	}
+}
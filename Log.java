@@ -0,0 +1,207 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous, level-gated logger for the hot paths of the servers.
+ *
+ * Callers never touch the console: a message is put into a lock-free ring
+ * buffer and a background thread ("Log-writer") drains it in batches to
+ * System.out. When the ring is full the message is dropped and counted instead
+ * of blocking a reactor.
+ *
+ * A disabled level costs one volatile read: debug("const") returns before doing
+ * anything, debug(Supplier) never calls the supplier, and string building should
+ * sit behind if (Log.isDebug()).
+ *
+ * How-to: -Dlog.level=DEBUG|INFO|WARN|ERROR|OFF (default INFO),
+ * -Dlog.ring=<power of two> (default 65536 messages)
+ */
+public final class Log {
+
+	static final int DEBUG = 0;
+	static final int INFO = 1;
+	static final int WARN = 2;
+	static final int ERROR = 3;
+	static final int OFF = 4;
+
+	private static final String[] NAMES = { "DEBUG", "INFO", "WARN", "ERROR", "OFF" };
+
+	private static volatile int level = parseLevel(System.getProperty("log.level", "INFO"));
+
+	private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("log.ring", 1 << 16)));
+	private static final int MASK = CAPACITY - 1;
+
+	private static final AtomicReferenceArray<String> ring = new AtomicReferenceArray<String>(CAPACITY);
+	private static final AtomicLong tail = new AtomicLong(); // next slot to claim, producers
+	private static final AtomicLong head = new AtomicLong(); // next slot to drain, writer thread only
+	private static final LongAdder dropped = new LongAdder();
+
+	private static final PrintStream out = System.out;
+	private static final Thread writer;
+
+	static {
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		}, "Log-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		try {
+			Runtime.getRuntime().addShutdownHook(new Thread("Log-flush") {
+				@Override
+				public void run() {
+					drain();
+				}
+			});
+		} catch (IllegalStateException e) {
+			// first used while the JVM already shuts down: the writer still drains,
+			// but nothing flushes at the end
+		}
+	}
+
+	private Log() {
+	}
+
+	static boolean isDebug() {
+		return level <= DEBUG;
+	}
+
+	static boolean isEnabled(int lvl) {
+		return level <= lvl;
+	}
+
+	static void setLevel(int lvl) {
+		level = lvl;
+	}
+
+	static void setLevel(String name) {
+		level = parseLevel(name);
+	}
+
+	static String levelName() {
+		return NAMES[level];
+	}
+
+	static void debug(String msg) {
+		if (level <= DEBUG)
+			offer(msg);
+	}
+
+	static void debug(Supplier<String> msg) {
+		if (level <= DEBUG)
+			offer(msg.get());
+	}
+
+	/**
+	 * Debug-level timing, same output as Util.loger(startpoint, name).
+	 */
+	static void time(long startMillis, String name) {
+		if (level <= DEBUG)
+			offer(name + " time used:" + (System.currentTimeMillis() - startMillis));
+	}
+
+	static void info(String msg) {
+		if (level <= INFO)
+			offer(msg);
+	}
+
+	static void info(Supplier<String> msg) {
+		if (level <= INFO)
+			offer(msg.get());
+	}
+
+	static void warn(String msg) {
+		if (level <= WARN)
+			offer(msg);
+	}
+
+	static void error(String msg) {
+		if (level <= ERROR)
+			offer(msg);
+	}
+
+	static long dropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Claims a slot with a CAS on tail and publishes the message into it; the
+	 * writer only advances past a slot once the message is visible.
+	 */
+	private static void offer(String msg) {
+		long t;
+		do {
+			t = tail.get();
+			if (t - head.get() >= CAPACITY) {
+				dropped.increment();
+				return;
+			}
+		} while (!tail.compareAndSet(t, t + 1));
+
+		ring.set((int) t & MASK, msg == null ? "null" : msg);
+	}
+
+	private static void drainLoop() {
+		int idle = 0;
+		while (true) {
+			if (drain() > 0) {
+				idle = 0;
+			} else {
+				// back off up to 1ms, producers never have to wake us up
+				idle = Math.min(idle + 1, 10);
+				LockSupport.parkNanos(100_000L * idle);
+			}
+		}
+	}
+
+	private static final StringBuilder batch = new StringBuilder(1 << 16);
+	private static long reportedDrops;
+
+	private static synchronized int drain() {
+		int n = 0;
+		long h = head.get();
+		while (h < tail.get()) {
+			int idx = (int) h & MASK;
+			String msg = ring.get(idx);
+			if (msg == null)
+				break; // claimed but not published yet
+			ring.lazySet(idx, null);
+			batch.append(msg).append('\n');
+			head.lazySet(++h);
+			n++;
+
+			if (batch.length() >= (1 << 16))
+				write();
+		}
+
+		long d = dropped.sum();
+		if (d != reportedDrops) {
+			batch.append("Log: ").append(d - reportedDrops).append(" message(s) dropped, ring full\n");
+			reportedDrops = d;
+		}
+		if (batch.length() > 0)
+			write();
+		return n;
+	}
+
+	private static void write() {
+		out.print(batch);
+		out.flush();
+		batch.setLength(0);
+	}
+
+	static int parseLevel(String name) {
+		for (int i = 0; i < NAMES.length; i++) {
+			if (NAMES[i].equalsIgnoreCase(name.trim()))
+				return i;
+		}
+		return INFO;
+	}
+}
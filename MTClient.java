@@ -1,9 +1,14 @@
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.Scanner;
 import java.util.regex.Pattern;
 
@@ -19,11 +24,17 @@ public class MTClient implements Runnable {
 	private static String ip="localhost";
 	private static int port = 8899;
 	
+	private SocketChannel channel; // blocking; writes the direct payload without a heap copy
 	private Socket socket;
 	private Scanner scanner;
+	private Recorder recorder;
+	private final ByteBuffer newline = NEWLINE.duplicate(); // this client's view, rewound per send
 	
 	private int tid =0; // thread_id
 	
+	static Payload PAYLOAD;
+	private static final ByteBuffer NEWLINE = ByteBuffer.wrap(new byte[] { '\n' }).asReadOnlyBuffer();
+	
 		
 
 	MTClient(int threadId){
@@ -34,10 +45,17 @@ public class MTClient implements Runnable {
 	public static void main(String[] args) throws UnknownHostException, IOException {
 		// TODO Auto-generated method stub
 				
-	if (args.length==2) {
+	if (args.length>=2) {
 		ip = args[0];		
 		port = new Integer( args[1]);
+		for (int i = 2; i < args.length; i++) {
+			if (!Payload.option(args[i]) && !Reporter.option(args[i]))
+				log("Unknown option " + args[i]);
+		}
 	}
+	PAYLOAD = Payload.create();
+	log(PAYLOAD);
+	Reporter.start("MTClient");
 	
 	
 	
@@ -63,13 +81,44 @@ public class MTClient implements Runnable {
 		
 		InetAddress serverAddress = InetAddress.getByName(ip);
 				
-		this.socket = new Socket(serverAddress, port);
+		this.channel = SocketChannel.open(new InetSocketAddress(serverAddress, port));
+		this.socket = channel.socket();
         this.scanner = new Scanner(System.in);
         
         log("Connected to: \t" + this.socket.getInetAddress());
 		
 	}
 
+  /**
+   * One line: the payload as is, no String or byte[] copy, then '\n'.
+   */
+  void send(ByteBuffer mesg) throws IOException {
+   int length = mesg.remaining();
+   while (mesg.hasRemaining())
+	   channel.write(mesg);
+   newline.rewind();
+   while (newline.hasRemaining())
+	   channel.write(newline);
+   log(" ehco: what I sent is " + length + " bytes");
+  }
+
+  /**
+   * Reads lines up to the echo of a length byte line, past MTServer's GOLD
+   * greeting.
+   *
+   * @return bytes read, -1 if the server closed first
+   */
+  long readEcho(BufferedReader in, int length) throws IOException {
+   long read = 0;
+   String line;
+   while ((line = in.readLine()) != null) {
+	   read += line.length() + 1;
+	   if (line.length() == length && !line.endsWith("piles of GOLD  in the CAVE"))
+		   return read;
+   }
+   return -1;
+  }
+
   void send(String mesg) throws IOException {
   // String mesg="OK, HELLO from BCIT at send of MTClient";
    PrintWriter out = new PrintWriter(this.socket.getOutputStream(), true);
@@ -89,16 +138,39 @@ public class MTClient implements Runnable {
 	public void run() {
 		// TODO Auto-generated method stub
 		
+		recorder = Reporter.recorder();
 		try {
 			this.connect();
-			SuperClient sc = new SuperClient(-1);
-                        String msg = Util.bigMsg(1024);
-			this.send(msg);
+			recorder.begin().opened++;
+			recorder.end();
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+			ByteBuffer mesg = PAYLOAD.cursor(tid).next();
+			int length = mesg.remaining();
+			long startPoint = System.nanoTime();
+			this.send(mesg);
+			long read = readEcho(in, length);
+			long used = System.nanoTime() - startPoint;
+
+			Recorder.Interval stats = recorder.begin();
+			stats.bytesOut += length + 1;
+			if (read < 0) {
+				stats.errors++;
+			} else {
+				stats.latency.record(used);
+				stats.requests++;
+				stats.bytesIn += read;
+			}
+			recorder.end();
 		//	this.getInputThenSend();
 			
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
+			recorder.begin().errors++;
+			recorder.end();
+		} finally {
+			recorder.retire();
 		}
 	
 		
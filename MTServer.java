@@ -4,23 +4,60 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.Executor;
 
+/**
+ * Blocking thread-per-connection echo server, in three flavours: a new platform
+ * thread per connection, a bounded ThreadPoolExecutor ("pool"), or a virtual
+ * thread per connection ("vt", ServerManager mode MT-VT). The blocking run()
+ * loop is the same for all of them.
+ *
+ * Virtual threads need JDK 21+; they are looked up reflectively so this still
+ * builds on older JDKs, where MT-VT falls back to platform threads.
+ *
+ * Admission control: at most MAX_INFLIGHT connections are served at a time.
+ * Beyond that OVERLOAD decides: QUEUE waits a little for a slot, REJECT closes
+ * the new connection right away, PAUSE stops accepting until a slot frees up.
+ * Admitted clients keep their latency instead of every client sharing the
+ * collapse.
+ */
 public class MTServer implements Runnable {
 
 	private static int SERVER_PORT = 8899;
 
 	Socket csocket;
 	int tid;
+	Semaphore budget; // the in-flight slot this connection holds, released in run()
 
 	static boolean poolMode = false;
+	static boolean virtualMode = false;
+
+	enum Overload { QUEUE, REJECT, PAUSE }
+
+	static int MAX_INFLIGHT = 1024; // MAX_THREAD_POOL_SIZE, so an admitted connection never waits in the pool queue
+	static Overload OVERLOAD = Overload.REJECT;
+	static long QUEUE_TIMEOUT_MS = 100;
+
+	// admitted connections, closed by the shutdown hook
+	private static final Set<Socket> active = ConcurrentHashMap.newKeySet();
+	private static volatile boolean shuttingDown;
+
 	 static final int      MIN_THREAD_POOL_SIZE=2;
 	 static final int      MAX_THREAD_POOL_SIZE=1024; // for processing requests
+
+	static final ServerMetrics metrics = Metrics.server("MTServer");
 	
 	MTServer(Socket csocket, int threadId) {
 		this.csocket = csocket;
@@ -31,6 +68,8 @@ public class MTServer implements Runnable {
 		
 		if(args.length ==2 && (args[1].indexOf("pool")!=-1))
 			poolMode = true;
+		if(args.length ==2 && (args[1].indexOf("vt")!=-1))
+			virtualMode = true;
 		
 		execute(SERVER_PORT);
 	}
@@ -43,60 +82,151 @@ public class MTServer implements Runnable {
 		 
 		ServerSocket ssock;
 		
-	    // Create a thread pool (Executor)
-	  Executor  executor=new ThreadPoolExecutor(MIN_THREAD_POOL_SIZE, MAX_THREAD_POOL_SIZE, 30000, TimeUnit.MILLISECONDS,
-	                                    new LinkedBlockingQueue(1000));
+	    // Create a thread pool (Executor); threads are created up to the max before
+	    // anything is queued, idle ones die after 30s
+	  ThreadPoolExecutor  executor=new ThreadPoolExecutor(MAX_THREAD_POOL_SIZE, MAX_THREAD_POOL_SIZE, 30000, TimeUnit.MILLISECONDS,
+	                                    new LinkedBlockingQueue<Runnable>(1000));
+	  executor.allowCoreThreadTimeOut(true);
+
+	  // one virtual thread per task, no pooling and no queue
+	  Executor  vtExecutor = virtualMode ? virtualThreadExecutor() : null;
+
+	  Semaphore budget = new Semaphore(MAX_INFLIGHT);
 		
 	  int counter =0;
-	  long startPoint =0;
 		try {
 			ssock = new ServerSocket(port);
 		
-			Util.loger("Listening on port:" + port);
+			Util.loger("Listening on port:" + port + ", in-flight budget " + MAX_INFLIGHT + ", on overload " + OVERLOAD);
+
+			addShutdownHook(ssock, executor, vtExecutor);
 
 			for (int i = 1;; i++) {
+				if (OVERLOAD == Overload.PAUSE)
+					budget.acquireUninterruptibly(); // stop accepting, the kernel backlog holds the rest
+
 				Socket sock = ssock.accept();
+				metrics.accepted.increment();
+				Log.debug("Connected");
+
+				if (OVERLOAD != Overload.PAUSE && !admit(budget)) {
+					reject(sock);
+					continue;
+				}
 
-				startPoint = System.currentTimeMillis();
-				Util.loger("Connected");
-
-				Thread mts = new Thread(new MTServer(sock, i));
-				mts.setName("MTServer-" + i);
-				
-				
-				Runtime.getRuntime().addShutdownHook(new Thread() {
-			         @Override
-			         public void run() {
-			           Util.loger("W: interrupt received, killing server…");
-			       //     this.showStats(startPoint,counter);
-			            try {
-			               mts.interrupt();
-			               mts.join();
-			            } catch (InterruptedException e) {
-			            	// e.printStackTrace();
-			            }
-			         }
-			      });
-				
-				
-				if (!poolMode)
-					mts.start();
-				else
-					executor.execute(mts);
+				MTServer task = new MTServer(sock, i);
+				task.budget = budget;
+				active.add(sock);
+
+				try {
+					if (vtExecutor != null) {
+						vtExecutor.execute(task);
+					} else if (poolMode) {
+						executor.execute(task);
+					} else {
+						Thread mts = new Thread(task);
+						mts.setName("MTServer-" + i);
+						mts.start();
+					}
+				} catch (RejectedExecutionException e) {
+					// budget bigger than pool + queue: shed this one, keep accepting
+					active.remove(sock);
+					budget.release();
+					reject(sock);
+					continue;
+				}
 
 				counter++;
 			}
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			// closed by the shutdown hook, or the listen socket failed
+			if (!shuttingDown)
+				e.printStackTrace();
 			
 		} finally	{
 			
-//			showStats(startPoint,counter);
+			Util.loger("Here is the connections handled:\t" + counter);
 		
 		}
 		
 	 }
+
+	/**
+	 * QUEUE waits up to QUEUE_TIMEOUT_MS for a slot, holding up the accept loop
+	 * (and so the backlog) meanwhile; REJECT only takes a free slot.
+	 */
+	private static boolean admit(Semaphore budget) {
+		if (OVERLOAD == Overload.QUEUE) {
+			try {
+				return budget.tryAcquire(QUEUE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return budget.tryAcquire();
+	}
+
+	/**
+	 * Fast close: SO_LINGER 0 sends a RST, so a shed connection costs neither a
+	 * thread nor a TIME_WAIT slot.
+	 */
+	private static void reject(Socket sock) {
+		metrics.rejected.increment();
+		metrics.closed.increment();
+		try {
+			sock.setSoLinger(true, 0);
+			sock.close();
+		} catch (IOException e) {
+			// already gone
+		}
+	}
+
+	/**
+	 * The one lifecycle hook of the server: stop accepting, then close every
+	 * admitted connection so the run() loops end.
+	 */
+	private static void addShutdownHook(final ServerSocket ssock, final ThreadPoolExecutor executor,
+			final Executor vtExecutor) {
+		Runtime.getRuntime().addShutdownHook(new Thread("MTServer-shutdown") {
+			@Override
+			public void run() {
+				Util.loger("W: interrupt received, killing server...");
+				shuttingDown = true;
+				try {
+					ssock.close();
+				} catch (IOException e) {
+					// ignore
+				}
+				for (Socket sock : active) {
+					try {
+						sock.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+				executor.shutdownNow();
+				if (vtExecutor instanceof ExecutorService)
+					((ExecutorService) vtExecutor).shutdownNow();
+				Util.loger(metrics);
+			}
+		});
+	}
+
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor(), or null before JDK 21.
+	 */
+	static Executor virtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			Util.loger("MTServer: a virtual thread per connection");
+			return (Executor) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			Util.loger("MTServer: virtual threads need JDK 21+, using a platform thread per connection");
+			return null;
+		}
+	}
+
 	private  void showStats(long startPoint,int counter) {
 		// TODO Auto-generated method stub
 		Util.loger(startPoint, "Here is the connections handled:\t"+ counter);
@@ -104,7 +234,8 @@ public class MTServer implements Runnable {
 	}
 
 	public void run() {
-		Util.loger(Thread.currentThread().getName()+" running...");
+		if (Log.isDebug())
+			Log.debug(Thread.currentThread()+" running...");
 		try {
 			PrintStream pstream = new PrintStream(csocket.getOutputStream());
 
@@ -117,13 +248,34 @@ public class MTServer implements Runnable {
 			BufferedReader in = new BufferedReader(new InputStreamReader(csocket.getInputStream()));
 			String inputLine;
 			while ((inputLine = in.readLine()) != null) {
+				long eventStart = System.nanoTime();
+				metrics.messagesIn.increment();
+				metrics.bytesIn.add(inputLine.length() + 1);
+
 				pstream.println(inputLine);				
 				Util.logd(inputLine);
+
+				metrics.messagesOut.increment();
+				metrics.bytesOut.add(inputLine.length() + 1);
+				metrics.eventTime.record(System.nanoTime() - eventStart);
 			}
 			pstream.close();
 			csocket.close();
 		} catch (IOException e) {
-			e.printStackTrace();
+			if (!shuttingDown) {
+				metrics.errors.increment();
+				e.printStackTrace();
+			}
+		} finally {
+			try {
+				csocket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			active.remove(csocket);
+			if (budget != null)
+				budget.release();
+			metrics.closed.increment();
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,57 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of the metrics of every server engine in this JVM. Each engine gets
+ * one ServerMetrics, created on first use and exported as the JMX MBean
+ * COMP8005:type=ServerMetrics,name=<engine>, so jconsole/VisualVM can watch a
+ * running server.
+ *
+ * How-to: java -Dcom.sun.management.jmxremote.port=9010
+ * -Dcom.sun.management.jmxremote.authenticate=false
+ * -Dcom.sun.management.jmxremote.ssl=false ServerManager ...
+ */
+public final class Metrics {
+
+	static final String DOMAIN = "COMP8005";
+
+	private static final ConcurrentMap<String, ServerMetrics> servers = new ConcurrentHashMap<String, ServerMetrics>();
+
+	private Metrics() {
+	}
+
+	static ServerMetrics server(String name) {
+		ServerMetrics metrics = servers.get(name);
+		if (metrics != null)
+			return metrics;
+
+		metrics = new ServerMetrics(name);
+		ServerMetrics prev = servers.putIfAbsent(name, metrics);
+		if (prev != null)
+			return prev;
+
+		register("ServerMetrics", name, metrics);
+		return metrics;
+	}
+
+	static void register(String type, String name, Object mbean) {
+		try {
+			MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+			if (!mbs.isRegistered(objectName))
+				mbs.registerMBean(mbean, objectName);
+		} catch (Exception e) {
+			// metrics keep working without JMX
+			Util.loger("Metrics: JMX registration of " + name + " failed: " + e);
+		}
+	}
+
+	static void dump() {
+		for (ServerMetrics metrics : servers.values())
+			Util.loger(metrics);
+	}
+}
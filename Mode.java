@@ -1,7 +1,29 @@
 
+/**
+ * Server engines selectable on the ServerManager command line.
+ */
 public enum Mode {
 	
-	SELECT,
-	EPOOL,
-	TRADINAONAL
+	EPOLL("EPOLL"),
+	POLL("POLL"),
+	MT("MT"),
+	MT_VT("MT-VT"),
+	AIO("AIO");
+
+	final String arg;
+
+	Mode(String arg) {
+		this.arg = arg;
+	}
+
+	/**
+	 * @return the engine named on the command line, case-insensitive, or null
+	 */
+	static Mode parse(String name) {
+		for (Mode m : values()) {
+			if (m.arg.equalsIgnoreCase(name))
+				return m;
+		}
+		return null;
+	}
 }
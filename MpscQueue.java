@@ -0,0 +1,60 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded lock-free queue for many producers and one consumer, the way work
+ * is handed to a reactor thread.
+ *
+ * A linked list with a stub head node (after Dmitry Vyukov's intrusive MPSC
+ * queue): offer() is one getAndSet on the tail plus one volatile store, never a
+ * CAS retry loop, and poll() is touched by the consumer thread only. An element
+ * whose producer is between those two steps is not visible yet; that producer
+ * always finishes its offer() before doing anything else, such as waking the
+ * consumer up.
+ *
+ * How-to: any thread may offer(), only the owning thread may poll()/isEmpty().
+ */
+public final class MpscQueue<E> {
+
+	private static final class Node<E> {
+		E value;
+		volatile Node<E> next;
+
+		Node(E value) {
+			this.value = value;
+		}
+	}
+
+	private final AtomicReference<Node<E>> tail;
+	private Node<E> head; // consumer only; the stub whose next is the first element
+
+	MpscQueue() {
+		Node<E> stub = new Node<E>(null);
+		head = stub;
+		tail = new AtomicReference<Node<E>>(stub);
+	}
+
+	void offer(E value) {
+		if (value == null)
+			throw new NullPointerException();
+		Node<E> node = new Node<E>(value);
+		Node<E> prev = tail.getAndSet(node);
+		prev.next = node;
+	}
+
+	/**
+	 * @return the oldest element, or null if none is visible yet
+	 */
+	E poll() {
+		Node<E> next = head.next;
+		if (next == null)
+			return null;
+		E value = next.value;
+		next.value = null; // next becomes the stub
+		head = next;
+		return value;
+	}
+
+	boolean isEmpty() {
+		return head.next == null;
+	}
+}
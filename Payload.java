@@ -0,0 +1,168 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Request payloads for the load clients, built once and handed out without
+ * allocating.
+ *
+ * One read-only buffer holds the content, either the "HELLO FROM BCIT:-)"
+ * pattern of Util.bigMsg or random printable ASCII, and a table of message
+ * sizes is drawn up front from the size distribution. A client thread takes a
+ * Cursor; each next() only repositions the cursor's own view of the shared
+ * buffer onto the next size (and, with random content, another offset), so
+ * pushing millions of messages creates no garbage on the client side.
+ *
+ * Distributions, with -size= as the FIXED size and -min= / -max= as the range:
+ * FIXED, UNIFORM over [min, max], BIMODAL (SMALL_SHARE of min, the rest max)
+ * and PARETO (min / U^(1/alpha), capped at max, the heavy tail of real traffic).
+ *
+ * Content never holds '\n', so line based servers (MTServer) see one message.
+ */
+public final class Payload {
+
+	enum Distribution {
+		FIXED, UNIFORM, BIMODAL, PARETO
+	}
+
+	static Distribution DISTRIBUTION = Distribution.FIXED;
+	static int SIZE = 1024;
+	static int MIN = 64;
+	static int MAX = 64 * 1024;
+	static double SMALL_SHARE = 0.9; // BIMODAL: share of MIN sized messages
+	static double PARETO_ALPHA = 1.16; // the 80/20 shape
+	static boolean RANDOM = false;
+	static long SEED = 8005;
+
+	static final String CORE = "HELLO FROM BCIT:-)";
+	static final int TABLE_SIZE = 1 << 16; // drawn sizes, a power of 2
+	static final int OFFSETS = 4096; // RANDOM: distinct start offsets into the content
+
+	private final ByteBuffer content;
+	private final int[] sizes = new int[TABLE_SIZE];
+	private final int[] offsets = new int[TABLE_SIZE];
+	private final int maxSize;
+	private final String description;
+
+	/**
+	 * A client thread's own position in the payload sequence; not thread-safe.
+	 */
+	final class Cursor {
+		private final ByteBuffer view = content.duplicate();
+		private int next;
+
+		private Cursor(int start) {
+			this.next = start;
+		}
+
+		/**
+		 * @return the cursor's view set to the next payload, read-only, valid
+		 *         until the following next()
+		 */
+		ByteBuffer next() {
+			int i = next++ & (TABLE_SIZE - 1);
+			view.limit(offsets[i] + sizes[i]).position(offsets[i]);
+			return view;
+		}
+	}
+
+	Payload(Distribution distribution, int size, int min, int max, boolean random, long seed) {
+		Random rnd = new Random(seed);
+		int largest = 0;
+		for (int i = 0; i < TABLE_SIZE; i++) {
+			sizes[i] = draw(distribution, size, Math.max(1, min), Math.max(min, max), rnd);
+			largest = Math.max(largest, sizes[i]);
+		}
+		maxSize = largest;
+
+		int spread = random ? OFFSETS : 0;
+		for (int i = 0; i < TABLE_SIZE; i++)
+			offsets[i] = spread == 0 ? 0 : rnd.nextInt(spread);
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(maxSize + spread);
+		while (buffer.hasRemaining()) {
+			if (random)
+				buffer.put((byte) (' ' + rnd.nextInt('~' - ' ' + 1)));
+			else
+				buffer.put((byte) CORE.charAt(buffer.position() % CORE.length()));
+		}
+		buffer.clear();
+		content = buffer.asReadOnlyBuffer();
+
+		description = distribution + " payload, size " + size + ", range " + min + "-" + max + ", largest " + maxSize
+				+ (random ? ", random content" : "");
+	}
+
+	/**
+	 * The payload of the static settings.
+	 */
+	static Payload create() {
+		return new Payload(DISTRIBUTION, SIZE, MIN, MAX, RANDOM, SEED);
+	}
+
+	private static int draw(Distribution distribution, int size, int min, int max, Random rnd) {
+		switch (distribution) {
+		case UNIFORM:
+			return min + rnd.nextInt(max - min + 1);
+		case BIMODAL:
+			return rnd.nextDouble() < SMALL_SHARE ? min : max;
+		case PARETO:
+			double u = 1.0 - rnd.nextDouble(); // (0, 1]
+			return (int) Math.min(max, min / Math.pow(u, 1.0 / PARETO_ALPHA));
+		default:
+			return Math.max(1, size);
+		}
+	}
+
+	/**
+	 * @param start where in the size table the cursor begins, e.g. the thread
+	 *              number, so clients do not all send the same sequence
+	 */
+	Cursor cursor(int start) {
+		return new Cursor(start * 7919);
+	}
+
+	/**
+	 * @return the largest payload this can hand out, for sizing read buffers
+	 */
+	int maxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Optional client arguments: -size=, -dist=fixed|uniform|bimodal|pareto,
+	 * -min=, -max=, -random.
+	 *
+	 * @return false if arg is not a payload option
+	 */
+	static boolean option(String arg) {
+
+		String size = "-size=";
+		String dist = "-dist=";
+		String min = "-min=";
+		String max = "-max=";
+
+		if (arg.startsWith(size)) {
+			SIZE = Integer.parseInt(arg.substring(size.length()));
+		} else if (arg.startsWith(dist)) {
+			try {
+				DISTRIBUTION = Distribution.valueOf(arg.substring(dist.length()).toUpperCase());
+			} catch (IllegalArgumentException e) {
+				Util.loger("Illegal arguments, need " + dist + "<fixed|uniform|bimodal|pareto>");
+			}
+		} else if (arg.startsWith(min)) {
+			MIN = Integer.parseInt(arg.substring(min.length()));
+		} else if (arg.startsWith(max)) {
+			MAX = Integer.parseInt(arg.substring(max.length()));
+		} else if (arg.equals("-random")) {
+			RANDOM = true;
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return description;
+	}
+}
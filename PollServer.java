@@ -1,5 +1,7 @@
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 
 import java.nio.channels.SelectionKey;
@@ -7,14 +9,21 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Provide the PollServer, which is pretty much same as EPollServer. But due to
  * unfortunately the lower layer issue at PollSelectProvider, which caused for
  * java.util.ConcurrentModificationException by Poll SelectProvider
  * 
+ * Framing (FrameDecoder.FORMAT) and the end-of-iteration flush of replies work
+ * as in EPollServer.
+ * 
+ * With REUSE_PORT each thread gets its own PollServer: its own Selector and its
+ * own ServerSocketChannel bound to the same ip:port with SO_REUSEPORT, so no
+ * selector is ever shared between threads and the kernel balances accepts.
+ * 
  * @author john @2018-02-11
  * 
  * 
@@ -34,12 +43,25 @@ public class PollServer implements Runnable {
 	static final int ULIMIT_SIZE = 80000; // Default
 	private static final long SELECT_TIMEOUT = 10000; // second of the select timeout just in case;
 
-	static int CLIENT_COUNTER;
+	static final ServerMetrics metrics = Metrics.server("PollServer");
+
+	// one listener per thread with SO_REUSEPORT, otherwise the single-thread server
+	static boolean REUSE_PORT = false;
+
+	// echo exactly the bytes read (zero-copy), or a zero padded BUFFER_SIZE reply
+	static boolean EXACT_ECHO = true;
 
 	private ServerSocketChannel serverChannel;
 	private Selector selector;
 
-	private ConcurrentHashMap<SocketChannel, byte[]> mesgCache = new ConcurrentHashMap<SocketChannel, byte[]>();
+	private static final FrameDecoder.Handler frameHandler = PollServer::echoFrame;
+
+	// connections with replies queued during this loop iteration, see flushDirty()
+	private final ArrayList<Connection> dirty = new ArrayList<Connection>();
+
+	// idle, lifetime and write-stall timers, same wheel as an EPollServer reactor
+	private final TimingWheel<Connection> timers = new TimingWheel<Connection>(EPollServer.TICK_MILLIS,
+			EPollServer.WHEEL_SLOTS, this::expired);
 
 	public PollServer() {
 
@@ -52,14 +74,35 @@ public class PollServer implements Runnable {
 	}
 
 	public static void execute(String ip, int port, int buffer, int threadNum) {
-		PollServer ps = new PollServer();
+
+		execute(ip, port, buffer, threadNum, REUSE_PORT);
+	}
+
+	public static void execute(String ip, int port, int buffer, int threadNum, boolean reusePort) {
 		BUFFER_SIZE = buffer;
-		ps.init(ip, port);
-		ps.run();
 
+		if (reusePort && !EPollServer.supportsReusePort()) {
+			Util.loger("SO_REUSEPORT is not supported here, falling back to the single listener");
+			reusePort = false;
+		}
+
+		if (!reusePort || threadNum <= 1) {
+			PollServer ps = new PollServer();
+			ps.init(ip, port, reusePort);
+			ps.run();
+			return;
+		}
+
+		for (int i = 1; i <= threadNum; i++) {
+			PollServer ps = new PollServer();
+			ps.init(ip, port, true);
+			Thread pst = new Thread(ps, "PollServerThread-" + i);
+			pst.start();
+		}
+		Util.loger("threadNum is " + threadNum + ", listener is SO_REUSEPORT");
 	}
 
-	private void init(String ip, int port) {
+	private void init(String ip, int port, boolean reusePort) {
 		Util.loger("initializing server");
 
 		if (selector != null || serverChannel != null)
@@ -69,6 +112,8 @@ public class PollServer implements Runnable {
 
 			selector = Selector.open();
 			serverChannel = ServerSocketChannel.open();
+			if (reusePort)
+				serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
 
 			serverChannel.configureBlocking(false);
 
@@ -91,8 +136,9 @@ public class PollServer implements Runnable {
 
 			while (!Thread.currentThread().isInterrupted()) {
 				long startPoint = System.currentTimeMillis();
-				selector.select(SELECT_TIMEOUT); // block
-				Util.loger(startPoint, "seletor.select");
+				selector.select(timers.nextTimeout(startPoint, SELECT_TIMEOUT)); // block, at most until a timer is due
+				Log.time(startPoint, "seletor.select");
+				metrics.selectWakeups.increment();
 
 				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
 
@@ -106,22 +152,28 @@ public class PollServer implements Runnable {
 						continue;
 					}
 
+					long eventStart = System.nanoTime();
+
 					if (key.isAcceptable()) {
-						Util.loger("Accepting connection");
+						Log.debug("Accepting connection");
 						accept(key);
-						CLIENT_COUNTER++;
 					}
 
 					if (key.isWritable()) {
-						Util.loger("Writing...");
+						Log.debug("Writing...");
 						write(key);
 					}
 
-					if (key.isReadable()) {
-						Util.loger("Reading connection");
+					if (key.isValid() && key.isReadable()) {
+						Log.debug("Reading connection");
 						read(key);
 					}
+
+					metrics.eventTime.record(System.nanoTime() - eventStart);
 				}
+
+				flushDirty();
+				timers.expire(System.currentTimeMillis());
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -133,72 +185,190 @@ public class PollServer implements Runnable {
 	private void accept(SelectionKey key) throws IOException {
 		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
 		SocketChannel socketChannel = serverSocketChannel.accept();
+		if (socketChannel == null)
+			return;
 		socketChannel.configureBlocking(false);
 
-		socketChannel.register(selector, SelectionKey.OP_WRITE);
-		byte[] hello = new String("Hello from server").getBytes();
-		mesgCache.put(socketChannel, hello);
+		// per-connection state rides on the key, see Connection
+		Connection conn = new Connection(socketChannel, BUFFER_SIZE, metrics);
+		if (FrameDecoder.FORMAT != FrameDecoder.Format.NONE)
+			conn.useFrames(FrameDecoder.create());
+		conn.queue(ByteBuffer.wrap(Connection.HELLO));
+		conn.key = socketChannel.register(selector, SelectionKey.OP_WRITE, conn);
+		if (Connection.hasTimeouts())
+			schedule(conn);
 	}
 
 	private void write(SelectionKey key) throws IOException {
 		SocketChannel channel = (SocketChannel) key.channel();
+		Connection conn = (Connection) key.attachment();
 
-		byte[] data = mesgCache.get(channel);
-		mesgCache.remove(channel);
-
-		channel.write(ByteBuffer.wrap(data));
-		Util.loger("Data write out is:" + new String(data));
+		try {
+			if (!conn.flush() && Connection.WRITE_STALL_TIMEOUT > 0)
+				schedule(conn);
+		} catch (IOException e) {
+			Log.debug("Writing problem, closing connection");
+			metrics.errors.increment();
+			close(key, channel);
+			return;
+		}
+		if (Log.isDebug())
+			Log.debug("Data write out is:" + conn.bytesOut + " bytes");
 
-		key.interestOps(SelectionKey.OP_READ); // IMPORTANT, alike state-machine trigger.
+		key.interestOps(conn.interestOps()); // IMPORTANT, alike state-machine trigger, OP_WRITE until drained.
 
 	}
 
 	private void read(SelectionKey key) throws IOException {
 		SocketChannel channel = (SocketChannel) key.channel();
-		ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-		readBuffer.clear();
+		Connection conn = (Connection) key.attachment();
+		ByteBuffer readBuffer = conn.inbound;
+		if (conn.decoder == null)
+			readBuffer.clear().limit(BUFFER_SIZE); // the pooled buffer may be bigger
 		int read;
 		try {
 			read = channel.read(readBuffer);
 		} catch (IOException e) {
-			Util.loger("Reading problem, closing connection");
-			key.cancel();
-			channel.close();
+			Log.debug("Reading problem, closing connection");
+			metrics.errors.increment();
+			close(key, channel);
 			return;
 		}
 		if (read == -1) {
-			Util.loger("Nothing was there to be read, closing connection");
-			channel.close();
-			key.cancel();
+			Log.debug("Nothing was there to be read, closing connection");
+			close(key, channel);
 			return;
 		}
+		conn.readDone(read);
 		// IMPORTANT - don't forget the flip() the buffer. It is like a reset without
 		// clearing it.
 		readBuffer.flip();
 
-		byte[] data = new byte[BUFFER_SIZE];
-		// read only buffer[length] can be accepted, otherwise, out-of-bound exception
-		// for data..
-		read = read < BUFFER_SIZE ? read : (BUFFER_SIZE - 1);
+		if (conn.decoder != null) {
+			decode(key, conn, readBuffer);
+			return;
+		}
+		// echo back..
+		echo(key, conn, readBuffer);
+	}
 
-		readBuffer.get(data, 0, read);
+	/**
+	 * Framed mode: every complete frame in the buffer is echoed, a partial one
+	 * stays in conn.inbound for the next read.
+	 */
+	private void decode(SelectionKey key, Connection conn, ByteBuffer data) throws IOException {
+		try {
+			conn.inbound = conn.decoder.decode(conn, data, frameHandler);
+		} catch (ProtocolException e) {
+			Log.warn("Closing connection: " + e.getMessage());
+			metrics.errors.increment();
+			close(key, conn.channel);
+			return;
+		}
+		markDirty(conn);
+	}
 
-		// echo back..
-		echo(key, data);
+	/**
+	 * Replies are not written where they are produced: the connection goes on
+	 * the dirty list once, however many requests one read held, and
+	 * flushDirty() writes it at the end of the loop iteration.
+	 */
+	private void markDirty(Connection conn) {
+		if (!conn.dirty) {
+			conn.dirty = true;
+			dirty.add(conn);
+		}
+	}
+
+	/**
+	 * One gathering write per dirty connection; OP_WRITE is only turned on for
+	 * a connection the kernel did not take everything from.
+	 */
+	private void flushDirty() throws IOException {
+		for (int i = 0; i < dirty.size(); i++) {
+			Connection conn = dirty.get(i);
+			conn.dirty = false;
+			if (conn.key.isValid()) // not closed since
+				write(conn.key);
+		}
+		dirty.clear();
+	}
+
+	/**
+	 * The frame is a view of the inbound buffer, so the echo is a copy into a
+	 * pooled buffer of its own, zero padded to BUFFER_SIZE unless EXACT_ECHO.
+	 */
+	private static void echoFrame(Connection conn, ByteBuffer frame, int headerLength) {
+		conn.frameDone();
+		int size = EXACT_ECHO ? frame.remaining() : Math.max(frame.remaining(), BUFFER_SIZE);
+		ByteBuffer reply = BufferPool.acquire(size);
+		reply.put(frame);
+		BufferPool.pad(reply);
+		reply.flip();
+		conn.queue(reply);
 	}
 
 	/**
-	 * Channel is a two way communication linked with Buffer .
+	 * Channel is a two way communication linked with Buffer . With EXACT_ECHO the
+	 * buffer just read goes straight back out; otherwise the reply is a pooled
+	 * buffer of BUFFER_SIZE, zero padded as the byte[] used to be.
 	 */
 
-	private void echo(SelectionKey key, byte[] data) {
+	private void echo(SelectionKey key, Connection conn, ByteBuffer data) {
 
 		if (null == data)
 			return; // gor the null data , ignore ...
-		SocketChannel socketChannel = (SocketChannel) key.channel();
 
-		mesgCache.put(socketChannel, data);
-		key.interestOps(SelectionKey.OP_WRITE); // really need for demo purpose
+		if (EXACT_ECHO) {
+			conn.echoInbound();
+		} else {
+			ByteBuffer reply = BufferPool.acquire(BUFFER_SIZE);
+			reply.put(data);
+			BufferPool.pad(reply);
+			reply.flip();
+			conn.queue(reply);
+		}
+
+		markDirty(conn); // written at the end of this loop iteration
+	}
+
+	private void close(SelectionKey key, SocketChannel channel) throws IOException {
+		key.cancel();
+		channel.close();
+		Connection conn = (Connection) key.attachment();
+		timers.cancel(conn);
+		conn.release();
+	}
+
+	/**
+	 * Puts the connection on the wheel for its nearest deadline. Only an earlier
+	 * deadline moves a timer that is already set; a later one is found lazily,
+	 * when the timer fires.
+	 */
+	private void schedule(Connection conn) {
+		long deadline = conn.nextDeadline();
+		if (deadline == Long.MAX_VALUE)
+			timers.cancel(conn);
+		else if (!conn.isScheduled() || deadline < conn.expiresAt)
+			timers.schedule(conn, deadline);
+	}
+
+	private void expired(Connection conn, long now) {
+		long deadline = conn.nextDeadline();
+		if (deadline > now) {
+			if (deadline != Long.MAX_VALUE)
+				timers.schedule(conn, deadline); // there was traffic since, look again later
+			return;
+		}
+
+		if (Log.isDebug())
+			Log.debug("Timed out, closing " + conn);
+		metrics.timedOut.increment();
+		try {
+			close(conn.channel.keyFor(selector), conn.channel);
+		} catch (IOException e) {
+			metrics.errors.increment();
+		}
 	}
 
 	private void closeConnection() {
@@ -217,7 +387,8 @@ public class PollServer implements Runnable {
 
 	private void showstats() {
 
-		Util.loger("The Client Number is\t" + CLIENT_COUNTER);
+		Util.loger("The Client Number is\t" + metrics.getConnectionsAccepted());
+		Util.loger(metrics);
 	}
 
 }
\ No newline at end of file
@@ -1,6 +1,8 @@
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 
 import java.nio.channels.SelectionKey;
@@ -8,42 +10,102 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
-import java.util.HashMap;
+import java.security.GeneralSecurityException;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *PortForward Server  based on the EPoll Server:
  *
- * 
+ * Every client gets its own upstream connection to FWD_IP:FWD_PORT, opened
+ * once when the client connects and kept for as long as it stays; both sockets
+ * are non-blocking on the same selector and the bytes are relayed through two
+ * pooled buffers, one per direction. A full buffer stops reading from the side
+ * that fills it until the other side drained it. The end of one side's stream
+ * is a half-close: what is still buffered toward the other side is sent, then
+ * its output is shut down, and the relay closes once both directions ended.
+ *
+ * Framing: a byte stream, relayed exactly as read in both directions; there is
+ * no zero padding to BUFFER_SIZE as the old copy-per-message forwarder had.
+ *
+ * Tunnel mode (TUNNEL, or -tunnel): the client side speaks the TunnelCipher
+ * record layer, as PortfwdClient -tunnel does; Portfwd decrypts what goes
+ * upstream and encrypts what comes back, record by record inside the reactor.
+ *
+ * Threads: every thread is a Portfwd of its own, with its own selector,
+ * listening socket (SO_REUSEPORT) and scratch buffer; without SO_REUSEPORT
+ * there is one thread.
+ *
  * @author Aiyan @2018-02-13
- * 
+ *
  * @@todo
  *         -Djava.nio.channels.spi.SelectorProvider=sun.nio.ch.PollSelectorProvider
- * 
+ *
+ * How-to: java Portfwd [-tunnel]
  */
 public class Portfwd implements Runnable {
-	
+
 //Local machine information
 	static String ADDRESS = "localhost";
 	static int PORT = 8090;   // proxy_server port
 	public final static long SELECT_TIMEOUT = 10000;
 
-//forwarding machine information	
+//forwarding machine information
 	static String FWD_IP ="localhost"; //"www.baidu.com";
-	
+
 	static int FWD_PORT = 8511;
-	
+
 	static int BUFFER_SIZE = 1024 * 51;
 	static int THREADNUM = 1;
 
-	static int counter;
+	// encrypted tunnel on the client side, see TunnelCipher
+	static boolean TUNNEL = false;
+
+	static final AtomicInteger counter = new AtomicInteger();
+	static final ServerMetrics metrics = Metrics.server("Portfwd");
 
 	private ServerSocketChannel serverChannel;
 	private Selector selector;
 
-	private Map<SocketChannel, byte[]> mesgCache = new HashMap<SocketChannel, byte[]>();
-//	private Map<SocketChannel, byte[]> mesgFwdCache = new HashMap<SocketChannel, byte[]>();
+	// plaintext read from upstream, before it is sealed for the client; this
+	// instance's thread only
+	private ByteBuffer sealScratch;
+
+	/**
+	 * A client and its upstream connection, attached to both keys. Buffers are in
+	 * write mode: what is between 0 and position waits to be sent.
+	 */
+	static final class Relay {
+		final SocketChannel client;
+		final SocketChannel upstream;
+		SelectionKey clientKey;
+		SelectionKey upstreamKey;
+
+		ByteBuffer toUpstream = BufferPool.acquire(BUFFER_SIZE);
+		ByteBuffer toClient = BufferPool.acquire(BUFFER_SIZE);
+
+		// tunnel mode: records from the client not opened yet, and the session
+		ByteBuffer fromClient;
+		TunnelCipher cipher;
+
+		// the side sent its end of stream / we shut down our output toward it
+		boolean clientEnded;
+		boolean upstreamEnded;
+		boolean clientShut;
+		boolean upstreamShut;
+		boolean closed;
+
+		Relay(SocketChannel client, SocketChannel upstream) {
+			this.client = client;
+			this.upstream = upstream;
+			toUpstream.limit(toUpstream.capacity());
+			toClient.limit(toClient.capacity());
+			if (TUNNEL) {
+				fromClient = BufferPool.acquire(BUFFER_SIZE);
+				fromClient.limit(fromClient.capacity());
+			}
+		}
+	}
 
 	public Portfwd() {
 
@@ -51,19 +113,31 @@ public class Portfwd implements Runnable {
 
 	public static void main(String[] args) {
 
+		for (String arg : args) {
+			if (arg.equals("-tunnel"))
+				TUNNEL = true;
+		}
 		execute(ADDRESS, PORT, BUFFER_SIZE, THREADNUM);
 	}
 
 	public static void execute(String ip, int port, int buffer, int threadNum) {
 
-		Portfwd ss = new Portfwd();
-		ss.init(ip, port);
-		BUFFER_SIZE = buffer;
+		BUFFER_SIZE = Math.max(buffer, TunnelCipher.MAX_RECORD + TunnelCipher.OVERHEAD);
 
 		Util.loger("The EPoll server is starting on port:" + port);
 		Util.loger("The provier is \t" + getProvider());
+		Util.loger("Forwarding to " + FWD_IP + ":" + FWD_PORT + (TUNNEL ? ", encrypted tunnel" : ""));
 
+		boolean reusePort = threadNum > 1 && EPollServer.supportsReusePort();
+		if (threadNum > 1 && !reusePort) {
+			Util.loger("SO_REUSEPORT is not supported here, running one thread");
+			threadNum = 1;
+		}
+
+		// each thread with its own server, Selector and scratch buffer
 		for (int i = 1; i <= threadNum; i++) {
+			Portfwd ss = new Portfwd();
+			ss.init(ip, port, reusePort);
 			Thread sstt = new Thread(ss, "Forward-EPoll-ServerThread-" + i);
 			sstt.start();
 		}
@@ -72,7 +146,7 @@ public class Portfwd implements Runnable {
 
 	}
 
-	private void init(String ip, int port) {
+	private void init(String ip, int port, boolean reusePort) {
 		Util.loger("initializing server");
 
 		if (selector != null)
@@ -84,6 +158,8 @@ public class Portfwd implements Runnable {
 
 			selector = Selector.open();
 			serverChannel = ServerSocketChannel.open();
+			if (reusePort)
+				serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
 			serverChannel.configureBlocking(false);
 			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 			// bind to the address
@@ -98,14 +174,15 @@ public class Portfwd implements Runnable {
 	public void run() {
 		Util.loger("Now accepting connections by..." + Thread.currentThread().getName());
 
-		counter++;
-		Util.loger("Connection Counter is::" + counter);
+		Util.loger("Connection Counter is::" + counter.incrementAndGet());
+		sealScratch = BufferPool.acquire(TunnelCipher.MAX_RECORD);
 		try {
 
 			while (!Thread.currentThread().isInterrupted()) {
 				long startPoint = System.currentTimeMillis();
 				selector.select(SELECT_TIMEOUT); // block
-				Util.loger(startPoint, "seletor.select");
+				Log.time(startPoint, "seletor.select");
+				metrics.selectWakeups.increment();
 
 				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
 
@@ -119,22 +196,36 @@ public class Portfwd implements Runnable {
 						continue;
 					}
 
+					long eventStart = System.nanoTime();
+
 					if (key.isAcceptable()) {
-						Util.loger("Accepting connection");
+						Log.debug("Accepting connection");
 						accept(key);
-
+						continue;
 					}
 
-					if (key.isWritable()) {
-						Util.loger("Forwarding...");
-//						write(key);
-						forward(key);
+					Relay relay = (Relay) key.attachment();
+					try {
+						if (key.isConnectable())
+							relay.upstream.finishConnect();
+						if (key.isValid() && key.isReadable()) {
+							Log.debug("Reading connection");
+							read(relay, key == relay.clientKey);
+						}
+						if (!relay.closed) {
+							Log.debug("Forwarding...");
+							pump(relay);
+						}
+						if (!relay.closed)
+							updateInterest(relay);
+					} catch (IOException | GeneralSecurityException e) {
+						if (Log.isDebug())
+							Log.debug("Relay problem, closing connection: " + e);
+						metrics.errors.increment();
+						close(relay);
 					}
 
-					if (key.isReadable()) {
-						Util.loger("Reading connection");
-						read(key);
-					}
+					metrics.eventTime.record(System.nanoTime() - eventStart);
 				}
 			}
 		} catch (IOException e) {
@@ -146,186 +237,251 @@ public class Portfwd implements Runnable {
 
 	}
 
+	/**
+	 * Opens the upstream connection right away, without waiting for it: the
+	 * client is only read from once it is up.
+	 */
 	private void accept(SelectionKey key) throws IOException {
 		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
 		SocketChannel socketChannel = serverSocketChannel.accept();
+		if (socketChannel == null)
+			return;
 		socketChannel.configureBlocking(false);
+		// data goes on in pieces as it arrives; Nagle would hold the last one for a delayed ACK
+		socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		metrics.accepted.increment();
 
-		socketChannel.register(selector, SelectionKey.OP_READ);
-//		socketChannel.register(selector, SelectionKey.OP_WRITE); //mmmttt added
-//		byte[] hello = new String("Hello from server").getBytes();
-//		mesgCache.put(socketChannel, hello);
+		SocketChannel upstream = SocketChannel.open();
+		upstream.configureBlocking(false);
+		upstream.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		try {
+			upstream.connect(new InetSocketAddress(FWD_IP, FWD_PORT));
+		} catch (IOException e) {
+			Util.loger("Can not forward to " + FWD_IP + ":" + FWD_PORT + ", " + e);
+			metrics.errors.increment();
+			metrics.closed.increment();
+			upstream.close();
+			socketChannel.close();
+			return;
+		}
+
+		Relay relay = new Relay(socketChannel, upstream);
+		relay.clientKey = socketChannel.register(selector, 0, relay);
+		relay.upstreamKey = upstream.register(selector, 0, relay);
+		updateInterest(relay);
 	}
 
 	/**
-	 * SocketChannel receiving back from the key.channel() is the same channel that
-	 * was used to register the selector in the accept() method. later, we might
-	 * register to write from the read() method (for example).
+	 * Reads from one side into the buffer toward the other side; pump() sends it
+	 * on.
 	 */
-	private void write2Client(SelectionKey key) throws IOException {
-		SocketChannel channel = (SocketChannel) key.channel();
-
-		byte[] data = mesgCache.get(channel);
-		mesgCache.remove(channel);
-
-		channel.write(ByteBuffer.wrap(data));
-		Util.loger("Data write out is:" + new String(data));
+	private void read(Relay relay, boolean fromClient) throws IOException, GeneralSecurityException {
+		int read;
+		if (fromClient) {
+			read = relay.client.read(TUNNEL ? relay.fromClient : relay.toUpstream);
+		} else if (TUNNEL) {
+			read = sealUpstream(relay);
+		} else {
+			read = relay.upstream.read(relay.toClient);
+		}
 
-		key.interestOps(SelectionKey.OP_READ);
+		if (read == -1) {
+			Log.debug("End of stream, flushing the other direction");
+			if (fromClient)
+				relay.clientEnded = true;
+			else
+				relay.upstreamEnded = true;
+			return;
+		}
+		if (read > 0) {
+			metrics.bytesIn.add(read);
+			metrics.messagesIn.increment();
+			if (Log.isDebug())
+				Log.debug("Received: " + read + " bytes");
+		}
+	}
 
+	/**
+	 * Moves everything that can move: opens the client's records as far as
+	 * toUpstream has room, then writes both directions.
+	 */
+	private void pump(Relay relay) throws IOException, GeneralSecurityException {
+		if (TUNNEL && relay.fromClient.position() > 0)
+			openRecords(relay);
+		write(relay, false);
+		write(relay, true);
+		halfClose(relay);
 	}
 
-	private void closeConnection() {
-		Util.loger("Closing server down");
-		if (selector != null) {
-			try {
-				selector.close();
-				serverChannel.socket().close();
-				serverChannel.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+	/**
+	 * Passes an end of stream on once everything before it was sent, and
+	 * closes the relay when both directions have ended.
+	 */
+	private void halfClose(Relay relay) throws IOException {
+		if (relay.clientEnded && !relay.upstreamShut) {
+			if (!relay.upstream.isConnected()) {
+				close(relay); // nothing was ever sent upstream
+				return;
 			}
+			if (relay.toUpstream.position() == 0) {
+				// toUpstream is empty, so whatever is left did not open: a cut record
+				if (TUNNEL && relay.fromClient.position() > 0)
+					throw new ProtocolException("tunnel ended inside a record");
+				relay.upstream.shutdownOutput();
+				relay.upstreamShut = true;
+			}
+		}
+		if (relay.upstreamEnded && !relay.clientShut && relay.toClient.position() == 0) {
+			relay.client.shutdownOutput();
+			relay.clientShut = true;
 		}
+		if (relay.clientShut && relay.upstreamShut)
+			close(relay);
 	}
 
-	private void read(SelectionKey key) throws IOException {
-		SocketChannel channel = (SocketChannel) key.channel();
-		ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-		readBuffer.clear();
-		int read;
+	/**
+	 * Tunnel mode, client to upstream: the hello first, then every complete
+	 * record is opened into toUpstream.
+	 */
+	private void openRecords(Relay relay) throws IOException, GeneralSecurityException {
+		ByteBuffer in = relay.fromClient;
+		in.flip();
 		try {
-			read = channel.read(readBuffer);
-		} catch (IOException e) {
-			Util.loger("Reading problem, closing connection");
-			key.cancel();
-			channel.close();
-			return;
-		}
-		if (read == -1) {
-			Util.loger("Nothing was there to be read, closing connection");
-			channel.close();
-			key.cancel();
-			return;
+			if (relay.cipher == null) {
+				byte[] clientNonce = TunnelCipher.getHello(in);
+				if (clientNonce == null)
+					return;
+				byte[] serverNonce = TunnelCipher.newNonce();
+				relay.cipher = new TunnelCipher(clientNonce, serverNonce, false);
+				// toClient is still empty, nothing is sealed before the handshake
+				TunnelCipher.putHello(relay.toClient, serverNonce);
+			}
+			relay.cipher.open(in, relay.toUpstream);
+		} finally {
+			in.compact();
 		}
+	}
 
-		readBuffer.flip();
-
-		byte[] data = new byte[BUFFER_SIZE];
-		// read only length can accept, otherwise, out-of-bound exception for data..
-		read = read < BUFFER_SIZE ? read : (BUFFER_SIZE - 1);
-
-		readBuffer.get(data, 0, read);
+	/**
+	 * Tunnel mode, upstream to client: reads and seals record after record into
+	 * toClient, as long as it has room and upstream has data, so a large reply
+	 * does not cost a select round per record.
+	 *
+	 * @return bytes read from upstream, -1 at its end
+	 */
+	private int sealUpstream(Relay relay) throws IOException, GeneralSecurityException {
+		if (relay.cipher == null)
+			return 0; // the client did not say hello yet, leave it in the socket
+
+		ByteBuffer plain = sealScratch;
+		int total = 0;
+		while (true) {
+			int room = relay.toClient.remaining() - TunnelCipher.OVERHEAD;
+			if (room <= 0)
+				break;
+			int want = Math.min(room, TunnelCipher.MAX_RECORD);
+			plain.clear().limit(want);
+			int read = relay.upstream.read(plain);
+			if (read < 0)
+				return total > 0 ? total : -1; // the end shows again on the next read
+			if (read == 0)
+				break;
+			plain.flip();
+			relay.cipher.seal(plain, relay.toClient);
+			total += read;
+			if (read < want)
+				break; // a short read, the socket is drained
+		}
+		return total;
+	}
 
-	Util.loger("Received: " + new String(data));
+	/**
+	 * Sends what is waiting for one side.
+	 */
+	private void write(Relay relay, boolean toClient) throws IOException {
+		SocketChannel channel = toClient ? relay.client : relay.upstream;
+		ByteBuffer buf = toClient ? relay.toClient : relay.toUpstream;
+		if (buf.position() == 0 || !channel.isConnected())
+			return;
 
-//		cache(key, data);  // null..
-	
-	if (null != data) {
-	mesgCache.put(channel, data);
-	key.interestOps(SelectionKey.OP_WRITE);
-	}
-	
+		buf.flip();
+		int written;
+		try {
+			written = channel.write(buf);
+		} finally {
+			buf.compact();
+		}
+		if (written > 0) {
+			metrics.bytesOut.add(written);
+			metrics.messagesOut.increment();
+			if (Log.isDebug())
+				Log.debug("Data write out is:" + written + " bytes");
+		}
 	}
 
-	private boolean relay(SocketChannel from, SocketChannel to, ByteBuffer buf) throws Exception {
-        int num;
-        StringBuilder sb;
-
-        buf.clear();
-        while (true) {
-            num=from.read(buf);
-            if (num < 0)
-                return false;
-            else
-                if (num == 0)
-                    return true;
-            buf.flip();
-            
-                      
-                sb=new StringBuilder();
-                sb.append(new String(buf.array()).trim());
-                sb.append('\n');
-               Util.logd(sb.toString());
-           
-            to.write(buf);
-            buf.flip();
-        }
+	/**
+	 * Read a side only while the buffer toward the other side has room, write it
+	 * only while something waits for it.
+	 */
+	private void updateInterest(Relay relay) {
+		boolean up = relay.upstream.isConnected();
+
+		int clientOps = 0;
+		ByteBuffer clientIn = TUNNEL ? relay.fromClient : relay.toUpstream;
+		if (up && !relay.clientEnded && clientIn.hasRemaining())
+			clientOps |= SelectionKey.OP_READ;
+		if (relay.toClient.position() > 0)
+			clientOps |= SelectionKey.OP_WRITE;
+
+		int upstreamOps;
+		if (!up) {
+			upstreamOps = SelectionKey.OP_CONNECT;
+		} else {
+			upstreamOps = 0;
+			// in tunnel mode nothing comes back before the handshake
+			boolean room = TUNNEL ? relay.cipher != null && relay.toClient.remaining() > TunnelCipher.OVERHEAD
+					: relay.toClient.hasRemaining();
+			if (room && !relay.upstreamEnded)
+				upstreamOps |= SelectionKey.OP_READ;
+			if (relay.toUpstream.position() > 0)
+				upstreamOps |= SelectionKey.OP_WRITE;
+		}
+
+		relay.clientKey.interestOps(clientOps);
+		relay.upstreamKey.interestOps(upstreamOps);
 	}
-	
-
-	
-	private void forward(SelectionKey keyClient) {
-		
-		 try {
-	            SocketChannel socketChannel_fwd = SocketChannel.open();
-	            socketChannel_fwd.connect(new InetSocketAddress(FWD_IP, FWD_PORT));
-
-	            ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-	            ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-	            
-	            //Get the data in the mesgCache for forwarding 
-	            SocketChannel socketChannel = (SocketChannel) keyClient.channel();
-	        	byte[] data = mesgCache.get(socketChannel);
-	    		mesgCache.remove(socketChannel);
-   if (null == data) {
-	   Util.loger("Null from the mesgCache, method: forward(SelectionKey keyClient)");
-	   return;
-   }
-	            writeBuffer.put(data);   //mmm here is NULL
-	            writeBuffer.flip();
-
-	          
-	            	// doing the forward action
-	                writeBuffer.rewind();
-	                socketChannel_fwd.write(writeBuffer); ///block here also ..
-//	                writeBuffer.flip();    // here we get IOException 
-	                
-	                // get the response from fwded Server
-	                readBuffer.clear();
-	                socketChannel_fwd.read(readBuffer);  ///????? 
-	                Util.logd(Util.byteBuffer2String(readBuffer));
-
-	                // Further write to client:	  
-	                readBuffer.rewind();
-	                socketChannel.write(readBuffer);
-	                
-	                /**
-	                 * Exception in thread "SelectServerThread-1" java.nio.BufferUnderflowException
-	                 * when creating byte[] outdata = new byte[BUFFER_SIZE];  
-	                 */
-	         //       byte[] outdata = new byte[writeBuffer.remaining()];  
-	        //        writeBuffer.get(outdata);	                
-	                // Put it to cache for write to Client
-	              //  cache (keyClient, outdata);  //!!! can not use this way as I do not want to trigger the state_machine
-	             //   mesgCache.put(socketChannel, outdata);  //outdata -->data
-	                
-	       //mmmm         write2Client(keyClient);
-	                
-	                // trigger the state machine to read, already done in the write2Client 
-	                 // Keyclient here is my left side ....
-	                
-	           
-	        } catch (IOException e) {
-	        	e.printStackTrace();
-	        }
 
+	private void close(Relay relay) {
+		if (relay.closed)
+			return;
+		relay.closed = true;
+		metrics.closed.increment();
+		relay.clientKey.cancel();
+		relay.upstreamKey.cancel();
+		try {
+			relay.client.close();
+			relay.upstream.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		BufferPool.release(relay.toUpstream);
+		BufferPool.release(relay.toClient);
+		BufferPool.release(relay.fromClient);
 	}
-	
-	/**
-	 * Channel is a two way communication linked with Buffer .
-	 * In fact, cache is also triggering the send out of the data;
-	 * 
-	 */
 
-	private void cache(SelectionKey key, byte[] data) {
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-		mesgCache.put(socketChannel, data);
-		key.interestOps(SelectionKey.OP_WRITE);
+	private void closeConnection() {
+		Util.loger("Closing server down");
+		if (selector != null) {
+			try {
+				selector.close();
+				serverChannel.socket().close();
+				serverChannel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 	}
 
-	
-	
-	
 	static String getProvider() {
 
 		String rst;
@@ -16,6 +16,10 @@ import java.util.Map;
  * PortForward Server based on the EPoll Server: update for the mesgCache only
  * store client mesgs, not the content with right servers.
  * 
+ * Framing: the bytes read from a client are forwarded exactly as read, and the
+ * reply goes back exactly as read from the right server. Before the pooled
+ * buffers both went out zero padded to BUFFER_SIZE.
+ * 
  * @author Aiyan @2018-02-13
  * 
  * @@todo -Djava.nio.channels.spi.SelectorProvider=sun.nio.ch.PollSelectorProvider
@@ -105,7 +109,7 @@ public class PortfwdB implements Runnable {
 			while (!Thread.currentThread().isInterrupted()) {
 				long startPoint = System.currentTimeMillis();
 				selector.select(SELECT_TIMEOUT); // block
-				Util.loger(startPoint, "seletor.select");
+				Log.time(startPoint, "seletor.select");
 
 				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
 
@@ -120,19 +124,19 @@ public class PortfwdB implements Runnable {
 					}
 
 					if (key.isAcceptable()) {
-						Util.loger("Accepting connection");
+						Log.debug("Accepting connection");
 						accept(key);
 
 					}
 
 					if (key.isWritable()) { // should be NO >>>> handle only in READ
-						Util.loger("Forwarding...");
+						Log.debug("Forwarding...");
 						// write(key);
 						// forward(key);
 					}
 
 					if (key.isReadable()) {
-						Util.loger("Reading connection");
+						Log.debug("Reading connection");
 						read(key);
 					}
 				}
@@ -160,70 +164,65 @@ public class PortfwdB implements Runnable {
 
 	private void read(SelectionKey key) throws IOException {
 		SocketChannel channel = (SocketChannel) key.channel();
-		ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-		readBuffer.clear();
-		int read;
+		ByteBuffer readBuffer = BufferPool.acquire(BUFFER_SIZE);
 		try {
-			read = channel.read(readBuffer);
-		} catch (IOException e) {
-			Util.loger("Reading problem, closing connection");
-			key.cancel();
-			channel.close();
-			return;
-		}
-		if (read == -1) {
-			Util.loger("Nothing was there to be read, closing connection");
-			channel.close();
-			key.cancel();
-			return;
-		}
-
-		readBuffer.flip();
-
-		byte[] data = new byte[BUFFER_SIZE];
-		// read only length can accept, otherwise, out-of-bound exception for data..
-		read = read < BUFFER_SIZE ? read : (BUFFER_SIZE - 1);
+			int read;
+			try {
+				read = channel.read(readBuffer);
+			} catch (IOException e) {
+				Log.debug("Reading problem, closing connection");
+				key.cancel();
+				channel.close();
+				return;
+			}
+			if (read == -1) {
+				Log.debug("Nothing was there to be read, closing connection");
+				channel.close();
+				key.cancel();
+				return;
+			}
 
-		readBuffer.get(data, 0, read);
+			readBuffer.flip();
 
-		Util.loger("Received: " + new String(data));
+			if (Log.isDebug())
+				Log.debug("Received: " + read + " bytes");
 
-		// cache(key, data); // null..
+			// cache(key, data); // null..
 
-		forward(channel, data);
+			forward(channel, readBuffer);
+		} finally {
+			BufferPool.release(readBuffer);
+		}
 
 	}
 
-	private static void forward(SocketChannel channel, byte[] data) {
+	private static void forward(SocketChannel channel, ByteBuffer data) {
 		if (null == data) {
 			Util.loger("Null from the mesgCache, method: forward()");
 			return;
 		}
 
+		ByteBuffer readBuffer = BufferPool.acquire(BUFFER_SIZE);
 		try {
 			SocketChannel socketChannel_fwd = SocketChannel.open();
 			socketChannel_fwd.connect(new InetSocketAddress(FWD_IP, FWD_PORT));
 
-			ByteBuffer writeBuffer = ByteBuffer.allocate(data.length);
-			ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-
-			writeBuffer.put(data); // mmm here is NULL
-			writeBuffer.flip();
-			writeBuffer.rewind();
-			socketChannel_fwd.write(writeBuffer); /// block here also ..
+			socketChannel_fwd.write(data); /// block here also ..
 			// writeBuffer.flip(); // here we get IOException
 
 			// get the response from right Server
-			readBuffer.clear();
 			socketChannel_fwd.read(readBuffer);
-			Util.logd(Util.byteBuffer2String(readBuffer));
 
 			// Further write to client:
-			readBuffer.rewind();
+			readBuffer.flip();
+			if (Log.isDebug())
+				Log.debug(Util.byteBuffer2String(readBuffer));
 			channel.write(readBuffer);
 
 		} catch (IOException ie) {
 			ie.printStackTrace();
+		} finally {
+			BufferPool.release(readBuffer);
 		}
 
 	}
@@ -4,6 +4,7 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
+import java.security.GeneralSecurityException;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.Socket;
@@ -14,6 +15,9 @@ import java.util.regex.Pattern;
 /**
  * 1) Test scalability by mutil-connections 2) Test Performance
  * 
+ * With -tunnel the connection to Portfwd -tunnel is encrypted: a TunnelCipher
+ * handshake once, then every message goes out as sealed records.
+ * 
  * @author john
  *
  */
@@ -25,8 +29,11 @@ public class PortfwdClient implements Runnable {
 	static int BUFFER_SIZE=1024*51;
 	static int INTERVAL=100; // in  the span of the connection creation, control the speed (Milli-Sec)
 	static int TTL=1000*30;  // The duration of one connection (Milli-Sec) 
+	static boolean TUNNEL = false;
 
 	SocketChannel socketChannel;
+	TunnelCipher cipher; // tunnel mode only
+	Recorder recorder;
 
 	private static int tid = 0; // thread_id
 
@@ -40,7 +47,7 @@ public class PortfwdClient implements Runnable {
 
 	public static void main(String[] args) throws UnknownHostException, IOException {
 
-		if (args.length == 4) {
+		if (args.length >= 4) {
 			IP = args[0];
 			
 			// on purpose to demo different ways to transfer Str to Int
@@ -48,13 +55,20 @@ public class PortfwdClient implements Runnable {
 			INTERVAL = Integer.parseInt(args[2]);
 			TTL=Integer.parseInt(args[3]);
 			
+			for (int i = 4; i < args.length; i++) {
+				if (args[i].equals("-tunnel"))
+					TUNNEL = true;
+				else if (!Reporter.option(args[i]))
+					Util.loger("Unknown option " + args[i]);
+			}
 		} else {
-			Util.loger(" Usage: {IP} {PORT} {INTERVAL} {TTL}");
+			Util.loger(" Usage: {IP} {PORT} {INTERVAL} {TTL} [-tunnel] [-report=prefix|none] [-label=s]");
 			Util.loger("Current ip and port :" + IP + " " + PORT);
 			
 			return;
 		}
 
+		Reporter.start("PortfwdClient");
 		
 		for (int i = 0;i<10; i++) {
 			PortfwdClient tc = new PortfwdClient(i);
@@ -81,6 +95,32 @@ public class PortfwdClient implements Runnable {
 
 		Util.loger("Connected to: \t" + IP);
 
+		if (TUNNEL)
+			handshake();
+	}
+
+	/**
+	 * Tunnel mode: swap hellos with Portfwd and derive the session keys.
+	 */
+	void handshake() throws IOException {
+		byte[] clientNonce = TunnelCipher.newNonce();
+		ByteBuffer hello = ByteBuffer.allocate(TunnelCipher.HELLO_SIZE);
+		TunnelCipher.putHello(hello, clientNonce);
+		hello.flip();
+		while (hello.hasRemaining())
+			socketChannel.write(hello);
+
+		hello.clear();
+		while (hello.hasRemaining()) {
+			if (socketChannel.read(hello) < 0)
+				throw new IOException("tunnel closed during the handshake");
+		}
+		hello.flip();
+		try {
+			cipher = new TunnelCipher(clientNonce, TunnelCipher.getHello(hello), true);
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
 	}
 
 	@Override
@@ -88,8 +128,11 @@ public class PortfwdClient implements Runnable {
 
 		String tName = Thread.currentThread().getName();
 		Util.loger(tName + " started...");
+		recorder = Reporter.recorder();
 		try {
 			this.connect();
+			recorder.begin().opened++;
+			recorder.end();
 
 			String mesgToSend = "http://localhost:8090/"   ;           
 //			String mesgToSend = "http://www.baidu.com";
@@ -101,12 +144,38 @@ public class PortfwdClient implements Runnable {
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
+			error();
+		} finally {
+			recorder.retire();
 		}
 
 	}
 
+	/**
+	 * One echo for the Reporter.
+	 */
+	void record(long startPoint, long sent, long received) {
+		long used = System.nanoTime() - startPoint;
+		Recorder.Interval stats = recorder.begin();
+		stats.latency.record(used);
+		stats.requests++;
+		stats.bytesOut += sent;
+		stats.bytesIn += Math.max(0, received);
+		recorder.end();
+		Util.loger("Intervial_of_echo time used(us):" + used / 1000);
+	}
+
+	void error() {
+		recorder.begin().errors++;
+		recorder.end();
+	}
+
 	void send(String msg) {
 
+		if (TUNNEL) {
+			sendSealed(msg);
+			return;
+		}
 		try {
 			BUFFER_SIZE = msg.length();
 			ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
@@ -117,19 +186,59 @@ public class PortfwdClient implements Runnable {
 
 			// while (true)
 			{
-				long startPoint = System.currentTimeMillis();
+				long startPoint = System.nanoTime();
 				writeBuffer.rewind();
-				socketChannel.write(writeBuffer);
+				int sent = socketChannel.write(writeBuffer);
 				
 				//check return 
 				readBuffer.clear();
-				socketChannel.read(readBuffer);
-				Util.loger(startPoint, "Intervial_of_echo time");
+				int received = socketChannel.read(readBuffer);
+				record(startPoint, sent, received);
 				Util.logd("Response is:"+ ( new String(readBuffer.array())));
 		
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
+			error();
+		}
+	}
+
+	/**
+	 * Tunnel mode send: msg as sealed records, then read until the first
+	 * records of the response open.
+	 */
+	void sendSealed(String msg) {
+
+		try {
+			ByteBuffer plain = ByteBuffer.wrap(msg.getBytes());
+			ByteBuffer writeBuffer = ByteBuffer
+					.allocate(plain.remaining() + (plain.remaining() / TunnelCipher.MAX_RECORD + 1) * TunnelCipher.OVERHEAD);
+			ByteBuffer readBuffer = ByteBuffer.allocate(TunnelCipher.MAX_RECORD + TunnelCipher.OVERHEAD);
+			ByteBuffer response = ByteBuffer.allocate(BUFFER_SIZE + TunnelCipher.MAX_RECORD);
+
+			long startPoint = System.nanoTime();
+			while (plain.hasRemaining())
+				cipher.seal(plain, writeBuffer);
+			writeBuffer.flip();
+			int sent = writeBuffer.remaining();
+			while (writeBuffer.hasRemaining())
+				socketChannel.write(writeBuffer);
+
+			long received = 0;
+			while (response.position() == 0) {
+				int n = socketChannel.read(readBuffer);
+				if (n < 0)
+					break;
+				received += n;
+				readBuffer.flip();
+				cipher.open(readBuffer, response);
+				readBuffer.compact();
+			}
+			record(startPoint, sent, received);
+			Util.logd("Response is:" + new String(response.array(), 0, response.position()));
+		} catch (IOException | GeneralSecurityException e) {
+			e.printStackTrace();
+			error();
 		}
 	}
 
@@ -18,6 +18,7 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 
 /**
@@ -76,6 +77,7 @@ public class Proxy {
     static final int      MIN_THREAD_POOL_SIZE=2;
     static final int      MAX_THREAD_POOL_SIZE=64; // for processing requests
     static final int      BUFSIZE=1024; // size of data transfer buffer
+    static final ServerMetrics metrics=Metrics.server("Proxy");
 
 
 
@@ -186,6 +188,7 @@ public class Proxy {
             // 4. Call Selector.select()
             try {
                 selector.select();
+                metrics.selectWakeups.increment();
 
                 // get set of ready objects
                 ready_keys=selector.selectedKeys();
@@ -198,12 +201,14 @@ public class Proxy {
                         // get server socket and attachment
                        src=(InetSocketAddress) key.attachment();
                         in_sock=srv_sock.accept(); // accept request
+                        metrics.accepted.increment();
                         if (verbose)
                             log("Proxy.loop()", "accepted connection from " + toString(in_sock));
                         dest=(InetSocketAddress) mappings.get(src);
                         // find corresponding dest
                         if (dest == null) {
                             in_sock.close();
+                            metrics.closed.increment();
                             log("Proxy.loop()", "did not find a destination host for " + src);
                             continue;
                         }
@@ -220,12 +225,14 @@ public class Proxy {
                         }
                         catch (Exception ex) {
                             in_sock.close();
+                            metrics.closed.increment();
                             throw ex;
                         }
                     }
                 }
             }
             catch (Exception ex) {
+                metrics.errors.increment();
                 log("Proxy.loop()", "exception: " + ex);
             }
         }
@@ -271,26 +278,30 @@ public class Proxy {
                                     continue;
                                 }
                                 if (key.isReadable()) { // data is available to be read from tmp
+                                    long eventStart=System.nanoTime();
                                     if (tmp == in_channel) {
                                         // read all data from in_channel and forward it to out_channel (request)
-                                        if (relay(tmp, out_channel, transfer_buf) == false)
+                                        if (relay(tmp, out_channel, transfer_buf, metrics.bytesIn, metrics.messagesIn) == false)
                                             return;
                                     }
                                     if (tmp == out_channel) {
                                         // read all data from out_channel and forward it 
                                         // to in_channel (response)
-                                        if (relay(tmp, in_channel, transfer_buf) == false)
+                                        if (relay(tmp, in_channel, transfer_buf, metrics.bytesOut, metrics.messagesOut) == false)
                                             return;
                                     }
+                                    metrics.eventTime.record(System.nanoTime() - eventStart);
                                 }
                             }
                         }
                     }
                     catch (Exception ex) {
+                        metrics.errors.increment();
                         ex.printStackTrace();
                     }
                     finally {
                         close(sel, in_channel, out_channel);
+                        metrics.closed.increment();
                     }
                 }
             });
@@ -319,10 +330,10 @@ public class Proxy {
 
 
     /**
-     * Read all data from <code>from</code> and write it to <code>to</code>.
-     * Returns false if channel was closed
+     * Read all data from <code>from</code> and write it to <code>to</code>, counting the relayed
+     * bytes and reads. Returns false if channel was closed
      */
-    boolean relay(SocketChannel from, SocketChannel to, ByteBuffer buf) throws Exception {
+    boolean relay(SocketChannel from, SocketChannel to, ByteBuffer buf, LongAdder bytes, LongAdder reads) throws Exception {
         int num;
         StringBuilder sb;
 
@@ -334,6 +345,8 @@ public class Proxy {
             else
                 if (num == 0)
                     return true;
+            bytes.add(num);
+            reads.increment();
             buf.flip();
             if (verbose) {
                 log(printRelayedData(toString(from), toString(to), buf.remaining()));
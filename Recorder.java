@@ -0,0 +1,96 @@
+/**
+ * One load client thread's measurements, handed to the Reporter once a second
+ * without a lock or an atomic on the recording side.
+ *
+ * The writer records into the active Interval between begin() and end(), which
+ * are one volatile store each; a LoadGenerator thread brackets a whole select
+ * iteration, a blocking client one request. The Reporter swaps in a fresh
+ * Interval and, if the writer is inside a begin()/end() at that moment, waits
+ * for it to leave before reading the old one (the writer-reader phaser of
+ * HdrHistogram, for a single writer).
+ *
+ * Writer side: begin(), end(), retire(). Reporter side: swap().
+ */
+public final class Recorder {
+
+	/**
+	 * What happened in one interval, in plain fields.
+	 */
+	static final class Interval {
+		final Histogram latency = new Histogram(); // ns
+		long requests;
+		long bytesIn;
+		long bytesOut;
+		long errors;
+		long opened;
+		long closed;
+
+		void add(Interval other) {
+			latency.add(other.latency);
+			requests += other.requests;
+			bytesIn += other.bytesIn;
+			bytesOut += other.bytesOut;
+			errors += other.errors;
+			opened += other.opened;
+			closed += other.closed;
+		}
+
+		void reset() {
+			latency.reset();
+			requests = 0;
+			bytesIn = 0;
+			bytesOut = 0;
+			errors = 0;
+			opened = 0;
+			closed = 0;
+		}
+	}
+
+	private volatile Interval active = new Interval();
+	private Interval spare = new Interval(); // Reporter only
+	private volatile long phase; // odd while the writer is between begin() and end()
+	private volatile boolean retired;
+
+	/**
+	 * @return the interval to record into until end()
+	 */
+	Interval begin() {
+		phase = phase + 1;
+		return active;
+	}
+
+	void end() {
+		phase = phase + 1;
+	}
+
+	/**
+	 * The writer is done for good; its last interval is still reported.
+	 */
+	void retire() {
+		retired = true;
+	}
+
+	boolean isRetired() {
+		return retired;
+	}
+
+	/**
+	 * Reporter thread only.
+	 *
+	 * @return the interval since the last swap, owned by the caller until the
+	 *         next swap
+	 */
+	Interval swap() {
+		Interval done = active;
+		spare.reset();
+		active = spare;
+
+		long seen = phase;
+		if ((seen & 1) != 0) {
+			while (phase == seen)
+				Thread.onSpinWait();
+		}
+		spare = done;
+		return done;
+	}
+}
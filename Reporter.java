@@ -0,0 +1,275 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Time series of a load client run: a background thread collects every
+ * Recorder once a second and writes one row per second, so runs against EPOLL,
+ * POLL or MT can be plotted and diffed.
+ *
+ * Files, with the prefix of -report= (default client name and start time):
+ * prefix.csv and prefix.jsonl, a row / JSON object per second with connections
+ * open, connects, errors, requests/s, bytes/s in and out and latency
+ * p50/p99/p99.9/max; prefix-summary.json, the whole run, written by finish()
+ * or on exit. -label= goes into every row, for example the server mode.
+ * -report=none turns the files off; the console line stays.
+ *
+ * The client threads never see any of it, they only record into their own
+ * Recorder.
+ *
+ * The per-second and summary lines go straight to System.out, not through the
+ * asynchronous Log: the summary is written from a shutdown hook, where the Log
+ * writer may already be gone.
+ */
+public final class Reporter implements Runnable {
+
+	static boolean ENABLED = true;
+	static String PREFIX = null; // null: client name and start time
+	static String LABEL = "";
+	static long PERIOD_MILLIS = 1000;
+
+	static final String CSV_HEADER = "time_s,label,open,connects,errors,requests,requests_per_s,bytes_in_per_s,"
+			+ "bytes_out_per_s,p50_us,p99_us,p999_us,max_us";
+
+	private static final CopyOnWriteArrayList<Recorder> recorders = new CopyOnWriteArrayList<Recorder>();
+	private static Reporter instance;
+
+	private final String client;
+	private final long start = System.currentTimeMillis();
+	private final Thread thread;
+	private PrintWriter csv;
+	private PrintWriter json;
+	private String prefix;
+
+	// Reporter thread only, or whoever calls finish() after it stopped
+	private final Recorder.Interval interval = new Recorder.Interval();
+	private final Recorder.Interval total = new Recorder.Interval();
+	private long open;
+	private long maxOpen;
+	private long lastCollect = start;
+	private boolean finished;
+
+	private Reporter(String client) {
+		this.client = client;
+		this.thread = new Thread(this, client + "-Reporter");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Starts the reporting of this run; later calls are ignored.
+	 */
+	static synchronized void start(String client) {
+		if (instance != null)
+			return;
+		instance = new Reporter(client);
+		instance.open();
+		instance.thread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(Reporter::finish, client + "-Reporter-exit"));
+	}
+
+	/**
+	 * A Recorder for the calling thread, collected from now on.
+	 */
+	static Recorder recorder() {
+		Recorder recorder = new Recorder();
+		recorders.add(recorder);
+		return recorder;
+	}
+
+	/**
+	 * Stops the collection, reports the last interval and writes the summary.
+	 */
+	static void finish() {
+		Reporter reporter;
+		synchronized (Reporter.class) {
+			reporter = instance;
+		}
+		if (reporter != null)
+			reporter.stop();
+	}
+
+	private void open() {
+		if (!ENABLED)
+			return;
+		prefix = PREFIX != null ? PREFIX
+				: client + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(start));
+		try {
+			csv = new PrintWriter(new FileWriter(prefix + ".csv"));
+			csv.println(CSV_HEADER);
+			json = new PrintWriter(new FileWriter(prefix + ".jsonl"));
+			Util.loger("Reporting to " + prefix + ".csv and " + prefix + ".jsonl");
+		} catch (IOException e) {
+			Util.loger("Cannot write the report files " + prefix + ": " + e);
+			csv = null;
+			json = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		long next = start + PERIOD_MILLIS;
+		while (true) {
+			try {
+				Thread.sleep(Math.max(1, next - System.currentTimeMillis()));
+			} catch (InterruptedException e) {
+				return;
+			}
+			synchronized (this) {
+				if (finished)
+					return;
+				collect();
+			}
+			next += PERIOD_MILLIS;
+		}
+	}
+
+	/**
+	 * Swaps every recorder and writes one row.
+	 */
+	private void collect() {
+		interval.reset();
+		for (Recorder recorder : recorders) {
+			// a retired recorder gets no more writes, this swap is its last
+			boolean last = recorder.isRetired();
+			interval.add(recorder.swap());
+			if (last)
+				recorders.remove(recorder);
+		}
+		total.add(interval);
+		open += interval.opened - interval.closed;
+		maxOpen = Math.max(maxOpen, open);
+
+		long now = System.currentTimeMillis();
+		double seconds = Math.max(1, now - lastCollect) / 1000.0;
+		lastCollect = now;
+		double time = (now - start) / 1000.0;
+		Histogram latency = interval.latency;
+
+		console(String.format(Locale.ROOT, "%s %.0fs: open %d, errors %d, %.0f req/s, %.0f KB/s in, latency %s",
+				client, time, open, interval.errors, interval.requests / seconds, interval.bytesIn / seconds / 1024,
+				latency.summary()));
+
+		if (csv != null) {
+			csv.println(String.format(Locale.ROOT, "%.3f,%s,%d,%d,%d,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f", time,
+					csvField(LABEL), open, interval.opened, interval.errors, interval.requests, interval.requests / seconds,
+					interval.bytesIn / seconds, interval.bytesOut / seconds, latency.percentile(50) / 1000.0,
+					latency.percentile(99) / 1000.0, latency.percentile(99.9) / 1000.0, latency.max() / 1000.0));
+			csv.flush();
+		}
+		if (json != null) {
+			json.println(String.format(Locale.ROOT,
+					"{\"time_s\":%.3f,\"label\":\"%s\",\"open\":%d,\"connects\":%d,\"errors\":%d,\"requests\":%d,"
+							+ "\"requests_per_s\":%.1f,\"bytes_in_per_s\":%.1f,\"bytes_out_per_s\":%.1f,"
+							+ "\"p50_us\":%.1f,\"p99_us\":%.1f,\"p999_us\":%.1f,\"max_us\":%.1f}",
+					time, json(LABEL), open, interval.opened, interval.errors, interval.requests, interval.requests / seconds,
+					interval.bytesIn / seconds, interval.bytesOut / seconds, latency.percentile(50) / 1000.0,
+					latency.percentile(99) / 1000.0, latency.percentile(99.9) / 1000.0, latency.max() / 1000.0));
+			json.flush();
+		}
+	}
+
+	private synchronized void stop() {
+		if (finished)
+			return;
+		collect();
+		finished = true;
+		thread.interrupt();
+
+		double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+		Histogram latency = total.latency;
+		String summary = String.format(Locale.ROOT,
+				"{\"client\":\"%s\",\"label\":\"%s\",\"duration_s\":%.3f,\"connects\":%d,\"max_open\":%d,"
+						+ "\"errors\":%d,\"requests\":%d,\"requests_per_s\":%.1f,\"bytes_in\":%d,\"bytes_out\":%d,"
+						+ "\"p50_us\":%.1f,\"p99_us\":%.1f,\"p999_us\":%.1f,\"max_us\":%.1f,\"mean_us\":%.1f}",
+				json(client), json(LABEL), seconds, total.opened, maxOpen, total.errors, total.requests, total.requests / seconds,
+				total.bytesIn, total.bytesOut, latency.percentile(50) / 1000.0, latency.percentile(99) / 1000.0,
+				latency.percentile(99.9) / 1000.0, latency.max() / 1000.0, latency.mean() / 1000.0);
+		console("Summary " + summary);
+
+		if (csv != null)
+			csv.close();
+		if (json != null)
+			json.close();
+		if (prefix != null) {
+			try (PrintWriter out = new PrintWriter(new FileWriter(prefix + "-summary.json"))) {
+				out.println(summary);
+			} catch (IOException e) {
+				console("Cannot write " + prefix + "-summary.json: " + e);
+			}
+		}
+	}
+
+	private static void console(String line) {
+		System.out.println(line);
+		System.out.flush();
+	}
+
+	/**
+	 * The value as a CSV field: quoted, embedded quotes doubled (RFC 4180).
+	 */
+	private static String csvField(String value) {
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+
+	/**
+	 * The value as the inside of a JSON string: quotes, backslashes and control
+	 * characters escaped.
+	 */
+	private static String json(String value) {
+		StringBuilder sb = new StringBuilder(value.length() + 8);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Optional client arguments: -report=<prefix>|none, -label=.
+	 *
+	 * @return false if arg is not a report option
+	 */
+	static boolean option(String arg) {
+
+		String report = "-report=";
+		String label = "-label=";
+
+		if (arg.startsWith(report)) {
+			String value = arg.substring(report.length());
+			if (value.equalsIgnoreCase("none"))
+				ENABLED = false;
+			else
+				PREFIX = value;
+		} else if (arg.startsWith(label)) {
+			LABEL = arg.substring(label.length());
+		} else {
+			return false;
+		}
+		return true;
+	}
+}
@@ -1,6 +1,7 @@
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 
 import java.nio.channels.SelectionKey;
@@ -8,9 +9,8 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -19,8 +19,7 @@ import java.util.concurrent.ConcurrentHashMap;
  * 
  * @author john @2018-01-31
  * 
- * @@todo: 1) hashmap could be bottleneck, is it thread-safe? 2) JVM tunning 3)
- *         ip stack tuning for linux kernel
+ * @@todo: 1) JVM tunning 2) ip stack tuning for linux kernel
  * 
  *
  *Howto:
@@ -39,34 +38,41 @@ public class SelectServer implements Runnable {
 //	private final static int bufferLen = 64 * 2;
 	final static int BUFFER_SIZE=1024*51;
 
-static int counter;
+	// echo exactly the bytes read (zero-copy), or a zero padded BUFFER_SIZE reply
+	static boolean EXACT_ECHO = true;
+
+static final AtomicInteger counter = new AtomicInteger();
+	static final ServerMetrics metrics = Metrics.server("SelectServer");
 
 	private ServerSocketChannel serverChannel;
 	private Selector selector;
 	/**
-	 * This hashmap is important. It keeps track of the data that will be written to
-	 * the clients. This is needed because we read/write asynchronously and we might
-	 * be reading while the server wants to write. In other words, we tell the
-	 * Selector we are ready to write (SelectionKey.OP_WRITE) and when we get a key
-	 * for writting, we then write from the Hashmap. The write() method explains
-	 * this further.
+	 * The data that will be written to a client is kept in its Connection, which
+	 * is attached to the SelectionKey. This is needed because we read/write
+	 * asynchronously and we might be reading while the server wants to write. In
+	 * other words, we tell the Selector we are ready to write
+	 * (SelectionKey.OP_WRITE) and when we get a key for writting, we then write
+	 * from the key's attachment. The write() method explains this further.
+	 *
+	 * A Connection is not thread-safe, so one SelectServer (and its Selector)
+	 * is only ever run by one thread; more threads each get their own server on
+	 * an SO_REUSEPORT listener.
 	 */
-private ConcurrentHashMap <SocketChannel, byte[]> dataTracking = new ConcurrentHashMap <SocketChannel, byte[]>();
 	public SelectServer() {
-		init();
+		this(false);
+	}
+
+	SelectServer(boolean reusePort) {
+		init(reusePort);
 	}
 
 	public static void main(String[] args) {
     	
-    	SelectServer ss = new SelectServer();
     	Util.loger("The select server is starting on port:"+PORT);
     	Util.loger("The provier is \t"+getProvider());
     
-    	Thread sst = new Thread (ss,"SelectServerThread-0");
-    	sst.start();
-    	
    // for multi-thread 
-    	int threadNo =1;
+    	int threadNo =0;
     	
     	if (args.length>0) {    		
     	
@@ -75,7 +81,9 @@ private ConcurrentHashMap <SocketChannel, byte[]> dataTracking = new ConcurrentH
     		for (String s : args) {
     			
     			// s = "-thread=30";
-    			if (s.startsWith(key))  
+    			if (s.equals("-echo=padded"))
+    				EXACT_ECHO = false;
+    			else if (s.startsWith(key))  
     			{    				
 //    				Util.loger(s.substring(s.indexOf(key)+key.length(), s.length()));
     				threadNo=new Integer(s.substring(s.indexOf(key)+key.length(), s.length()));
@@ -86,16 +94,22 @@ private ConcurrentHashMap <SocketChannel, byte[]> dataTracking = new ConcurrentH
     		}
     			
     		Util.loger("threadNo is "+threadNo);
-    		
-    		for ( int i=1; i<=threadNo; i++) {
-    			Thread sstt = new Thread (ss,"SelectServerThread-"+i);
-    	    	sstt.start();
-    		} 
-    	
-    	}    	
+    	}
+
+    	boolean reusePort = threadNo > 0 && EPollServer.supportsReusePort();
+    	if (threadNo > 0 && !reusePort) {
+    		Util.loger("SO_REUSEPORT is not supported here, running one thread");
+    		threadNo = 0;
+    	}
+
+    	// thread 0 plus threadNo more, each with its own server and Selector
+    	for ( int i=0; i<=threadNo; i++) {
+    		Thread sstt = new Thread (new SelectServer(reusePort),"SelectServerThread-"+i);
+    		sstt.start();
+    	}
 	}
 
-	private void init() {
+	private void init(boolean reusePort) {
 		Util.loger("initializing server");
 
 		if (selector != null)
@@ -108,6 +122,8 @@ private ConcurrentHashMap <SocketChannel, byte[]> dataTracking = new ConcurrentH
 			selector = Selector.open();
 
 			serverChannel = ServerSocketChannel.open();
+			if (reusePort)
+				serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
 
 			serverChannel.configureBlocking(false);
 
@@ -124,14 +140,14 @@ private ConcurrentHashMap <SocketChannel, byte[]> dataTracking = new ConcurrentH
 	public void run() {
 		Util.loger("Now accepting connections by..."+ Thread.currentThread().getName() );
 
-counter++;
-Util.loger("Connection Counter is::"+ counter);
+Util.loger("Connection Counter is::"+ counter.incrementAndGet());
 		try {
 
 			while (!Thread.currentThread().isInterrupted()) {
 				long startPoint = System.currentTimeMillis();
 				selector.select(TIMEOUT); // block
-				Util.loger(startPoint, "seletor.select");
+				Log.time(startPoint, "seletor.select");
+				metrics.selectWakeups.increment();
 
 				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
 
@@ -145,21 +161,25 @@ Util.loger("Connection Counter is::"+ counter);
 						continue;
 					}
 
+					long eventStart = System.nanoTime();
+
 					if (key.isAcceptable()) {
-						Util.loger("Accepting connection");
+						Log.debug("Accepting connection");
 						accept(key);
 
 					}
 
 					if (key.isWritable()) {
-						Util.loger("Writing...");
+						Log.debug("Writing...");
 						write(key);
 					}
 
-					if (key.isReadable()) {
-						Util.loger("Reading connection");
+					if (key.isValid() && key.isReadable()) {
+						Log.debug("Reading connection");
 						read(key);
 					}
+
+					metrics.eventTime.record(System.nanoTime() - eventStart);
 				}
 			}
 		} catch (IOException e) {
@@ -181,28 +201,32 @@ Util.loger("Connection Counter is::"+ counter);
 	private void write(SelectionKey key) throws IOException {
 		SocketChannel channel = (SocketChannel) key.channel();
 		/**
-		 * The hashmap contains the object SockenChannel along with the information in
-		 * it to be written. In this example, we send the "Hello from server" String and
-		 * also an echo back to the client. This is what the hashmap is for, to keep
-		 * track of the messages to be written and their socketChannels.
+		 * The attachment is the Connection of this SocketChannel, holding the
+		 * information to be written. In this example, we send the "Hello from server"
+		 * String and also an echo back to the client. This is what the outbound queue
+		 * is for, to keep track of the messages to be written for this channel.
 		 */
-		byte[] data = dataTracking.get(channel);
-		dataTracking.remove(channel);
+		Connection conn = (Connection) key.attachment();
 
 		// Something to notice here is that reads and writes in NIO go directly to the
 		// channel and in form of
-		// a buffer.
-		channel.write(ByteBuffer.wrap(data));
- //Util.loger("Data write out is:"+new String(data));
-		// Since we wrote, then we should register to read next, since that is the most
-		// logical thing
-		// to happen next. YOU DO NOT HAVE TO DO THIS. But I am doing it for the purpose
-		// of the example
-		// Usually if you register once for a read/write/connect/accept, you never have
-		// to register again for that unless you
-		// register for none (0). Like it said, I am doing it here for the purpose of
-		// the example. The same goes for all others.
-		key.interestOps(SelectionKey.OP_READ);
+		// a buffer. flush() hands the whole queue to one gathering write.
+		try {
+			conn.flush();
+		} catch (IOException e) {
+			Log.debug("Writing problem, closing connection");
+			metrics.errors.increment();
+			key.cancel();
+			channel.close();
+			conn.release();
+			return;
+		}
+ //Util.loger("Data write out is:"+conn.bytesOut);
+		// Once everything is written, we should register to read next, since that is
+		// the most logical thing to happen next. Whatever the kernel did not take
+		// stays queued and we keep OP_WRITE until it drained, otherwise it would be
+		// lost.
+		key.interestOps(conn.interestOps());
 
 	}
 
@@ -232,11 +256,13 @@ Util.loger("Connection Counter is::"+ counter);
 	private void accept(SelectionKey key) throws IOException {
 		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
 		SocketChannel socketChannel = serverSocketChannel.accept();
+		if (socketChannel == null)
+			return; // spurious wakeup, no connection pending
 		socketChannel.configureBlocking(false);
 
-		socketChannel.register(selector, SelectionKey.OP_WRITE);
-		byte[] hello = new String("Hello from server").getBytes();
-		dataTracking.put(socketChannel, hello);
+		Connection conn = new Connection(socketChannel, BUFFER_SIZE, metrics);
+		conn.queue(ByteBuffer.wrap(Connection.HELLO));
+		socketChannel.register(selector, SelectionKey.OP_WRITE, conn);
 	}
 
 	/**
@@ -248,49 +274,60 @@ Util.loger("Connection Counter is::"+ counter);
 	 */
 	private void read(SelectionKey key) throws IOException {
 		SocketChannel channel = (SocketChannel) key.channel();
-		ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-		readBuffer.clear();
+		Connection conn = (Connection) key.attachment();
+		ByteBuffer readBuffer = conn.inbound;
+		readBuffer.clear().limit(BUFFER_SIZE); // the pooled buffer may be bigger
 		int read;
 		try {
 			read = channel.read(readBuffer);
 		} catch (IOException e) {
-			Util.loger("Reading problem, closing connection");
+			Log.debug("Reading problem, closing connection");
+			metrics.errors.increment();
 			key.cancel();
 			channel.close();
+			conn.release();
 			return;
 		}
 		if (read == -1) {
-			Util.loger("Nothing was there to be read, closing connection");
+			Log.debug("Nothing was there to be read, closing connection");
 			channel.close();
 			key.cancel();
+			conn.release();
 			return;
 		}
+		conn.readDone(read);
 		// IMPORTANT - don't forget the flip() the buffer. It is like a reset without
 		// clearing it.
 		readBuffer.flip();
 
-		byte[] data = new byte[BUFFER_SIZE];
-		// read only length can accept, otherwise, out-of-bound exception for data..
-		read = read < BUFFER_SIZE ? read : (BUFFER_SIZE - 1);
+//		if (Log.isDebug())
+		Log.debug("Received: " + read + " bytes");
 
-		readBuffer.get(data, 0, read);
-
-//		Util.loger("Received: " + new String(data));
-
-		echo(key, data);
+		echo(key, conn, readBuffer);
 	}
 
 	/**
 	 * Channel is a two way communication linked with Buffer .
 	 * 
 	 * @param key
+	 * @param conn
 	 * @param data
 	 */
 
-	private void echo(SelectionKey key, byte[] data) {
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-		dataTracking.put(socketChannel, data);
-		key.interestOps(SelectionKey.OP_WRITE);
+	private void echo(SelectionKey key, Connection conn, ByteBuffer data) {
+		if (EXACT_ECHO) {
+			// the buffer just read goes straight back, no copy
+			conn.echoInbound();
+		} else {
+			// pooled reply of BUFFER_SIZE, zero padded as the byte[] used to be
+			ByteBuffer reply = BufferPool.acquire(BUFFER_SIZE);
+			reply.put(data);
+			BufferPool.pad(reply);
+			reply.flip();
+			conn.queue(reply);
+		}
+
+		key.interestOps(conn.interestOps());
 	}
 
 	static String getProvider() {
@@ -1,4 +1,5 @@
 import java.net.InetAddress;
+import java.nio.channels.spi.AsynchronousChannelProvider;
 import java.nio.channels.spi.SelectorProvider;
 
 public class ServerManager {
@@ -11,9 +12,11 @@ public class ServerManager {
 
 	static String ServerIP = "localhost";
 	static int ServerPort = 8088;
-	static String Mode = "EPOLL";
+	static Mode ServerMode = Mode.EPOLL;
 	static int BUFFER_SIZE = 1024 * 50;
 	static int ThreadNum = 1;
+	static boolean ReusePort = false;
+	static boolean ExactEcho = true;
 
 	public static void main(String[] args) {
 
@@ -26,17 +29,33 @@ public class ServerManager {
 
 	static void prepArgs(String[] args) {
 
-		Util.loger("<ServerIP> <ServerPort> <EPOLL|POLL|MT> <BUFFER_SIZE> <ThreadNumber> ");
+		Util.loger("<ServerIP> <ServerPort> <EPOLL|POLL|MT|MT-VT|AIO> <BUFFER_SIZE> <ThreadNumber> [-listen=acceptor|reuseport] [-echo=exact|padded] [-log=DEBUG|INFO|WARN|ERROR|OFF]");
+		Util.loger("  EPOLL/POLL: [-idle=<ms>] [-ttl=<ms>] [-stall=<ms>] close idle, too old or write-stalled connections");
+		Util.loger("  MT/MT-VT: [-inflight=<max connections>] [-overload=queue|reject|pause] [-queuewait=<ms>]");
+		Util.loger("  EPOLL: <ThreadNumber> is the number of reactor threads, each with its own selector");
+		Util.loger("  EPOLL: [-task=aes|none] [-workers=<threads>] [-workqueue=<depth>] run Util.commonTask on a worker stage");
+		Util.loger("  EPOLL: [-spin=<us>] [-yield=<us>] busy-poll with selectNow() before a blocking select");
+		Util.loger("  AIO: <ThreadNumber> is the size of the AsynchronousChannelGroup thread pool");
+		Util.loger("  -listen=reuseport: EPOLL/POLL threads each bind their own SO_REUSEPORT listener");
+		Util.loger("  -echo=padded: reply with a zero padded BUFFER_SIZE instead of the bytes read");
+		Util.loger("  EPOLL/POLL: [-frame=none|binary|text] [-maxframe=<bytes>] echo whole length-prefixed frames");
 
-		if (args.length >= 4) {
+		if (args.length >= 5) {
 
 			ServerIP = args[0];
 			ServerPort = Integer.parseInt(args[1]);
-			Mode = args[2];
+			ServerMode = Mode.parse(args[2]);
+			if (ServerMode == null) {
+				Util.loger("Illegal arguments, unknown mode " + args[2] + ", using EPOLL");
+				ServerMode = Mode.EPOLL;
+			}
 			BUFFER_SIZE = Integer.parseInt(args[3]);
 			ThreadNum = Integer.parseInt(args[4]);
 
-			if (Mode.equalsIgnoreCase("POLL")) {
+			for (int i = 5; i < args.length; i++)
+				prepOption(args[i]);
+
+			if (ServerMode == Mode.POLL) {
 				Util.loger(
 						" MUST-DO: -f POLL, MUST HAVE!! -Djava.nio.channels.spi.SelectorProvider=sun.nio.ch.PollSelectorProvider");
 				// @todo further check...
@@ -45,6 +64,91 @@ public class ServerManager {
 
 	}
 
+	/**
+	 * Optional trailing arguments use the -key=value form of SelectServer.
+	 */
+	static void prepOption(String arg) {
+
+		String key = "-listen=";
+		String echo = "-echo=";
+		String log = "-log=";
+		String inflight = "-inflight=";
+		String overload = "-overload=";
+		String queueWait = "-queuewait=";
+		String idle = "-idle=";
+		String ttl = "-ttl=";
+		String stall = "-stall=";
+		String spin = "-spin=";
+		String yield = "-yield=";
+		String frame = "-frame=";
+		String maxFrame = "-maxframe=";
+		String task = "-task=";
+		String workers = "-workers=";
+		String workQueue = "-workqueue=";
+
+		if (arg.startsWith(key)) {
+			String value = arg.substring(key.length());
+			if (value.equalsIgnoreCase("reuseport"))
+				ReusePort = true;
+			else if (value.equalsIgnoreCase("acceptor"))
+				ReusePort = false;
+			else
+				Util.loger("Illegal arguments, need " + key + "<acceptor|reuseport>");
+		} else if (arg.startsWith(echo)) {
+			String value = arg.substring(echo.length());
+			if (value.equalsIgnoreCase("exact"))
+				ExactEcho = true;
+			else if (value.equalsIgnoreCase("padded"))
+				ExactEcho = false;
+			else
+				Util.loger("Illegal arguments, need " + echo + "<exact|padded>");
+		} else if (arg.startsWith(log)) {
+			Log.setLevel(arg.substring(log.length()));
+			Util.loger("log level is " + Log.levelName());
+		} else if (arg.startsWith(inflight)) {
+			MTServer.MAX_INFLIGHT = Integer.parseInt(arg.substring(inflight.length()));
+		} else if (arg.startsWith(overload)) {
+			try {
+				MTServer.OVERLOAD = MTServer.Overload.valueOf(arg.substring(overload.length()).toUpperCase());
+			} catch (IllegalArgumentException e) {
+				Util.loger("Illegal arguments, need " + overload + "<queue|reject|pause>");
+			}
+		} else if (arg.startsWith(queueWait)) {
+			MTServer.QUEUE_TIMEOUT_MS = Long.parseLong(arg.substring(queueWait.length()));
+		} else if (arg.startsWith(idle)) {
+			Connection.IDLE_TIMEOUT = Long.parseLong(arg.substring(idle.length()));
+		} else if (arg.startsWith(ttl)) {
+			Connection.MAX_LIFETIME = Long.parseLong(arg.substring(ttl.length()));
+		} else if (arg.startsWith(stall)) {
+			Connection.WRITE_STALL_TIMEOUT = Long.parseLong(arg.substring(stall.length()));
+		} else if (arg.startsWith(spin)) {
+			EPollServer.SPIN_NANOS = Long.parseLong(arg.substring(spin.length())) * 1000;
+		} else if (arg.startsWith(yield)) {
+			EPollServer.YIELD_NANOS = Long.parseLong(arg.substring(yield.length())) * 1000;
+		} else if (arg.startsWith(frame)) {
+			FrameDecoder.Format format = FrameDecoder.parseFormat(arg.substring(frame.length()));
+			if (format != null)
+				FrameDecoder.FORMAT = format;
+			else
+				Util.loger("Illegal arguments, need " + frame + "<none|binary|text>");
+		} else if (arg.startsWith(maxFrame)) {
+			FrameDecoder.MAX_FRAME = Integer.parseInt(arg.substring(maxFrame.length()));
+		} else if (arg.startsWith(task)) {
+			String value = arg.substring(task.length());
+			if (value.equalsIgnoreCase("aes"))
+				EPollServer.AES_TASK = true;
+			else if (value.equalsIgnoreCase("none"))
+				EPollServer.AES_TASK = false;
+			else
+				Util.loger("Illegal arguments, need " + task + "<aes|none>");
+		} else if (arg.startsWith(workers)) {
+			WorkerStage.THREADS = Integer.parseInt(arg.substring(workers.length()));
+		} else if (arg.startsWith(workQueue)) {
+			WorkerStage.QUEUE_DEPTH = Integer.parseInt(arg.substring(workQueue.length()));
+		} else
+			Util.loger("Unknown option ignored: " + arg);
+	}
+
 	static void setupEnv() {
 
 		// put it in a shell
@@ -56,17 +160,30 @@ public class ServerManager {
 
 		Util.loger("The High Perform Server is starting on port:" + ServerPort);
 
-		if (Mode.equalsIgnoreCase("EPOLL")) {
-			EPollServer.execute(ServerIP, ServerPort, BUFFER_SIZE, ThreadNum);
+		EPollServer.EXACT_ECHO = ExactEcho;
+		PollServer.EXACT_ECHO = ExactEcho;
+		AIOServer.EXACT_ECHO = ExactEcho;
+
+		switch (ServerMode) {
+		case EPOLL:
+			EPollServer.execute(ServerIP, ServerPort, BUFFER_SIZE, ThreadNum, ReusePort);
 			Util.loger("The provider is \t" + getProvider());
 			return;
-		} else if (Mode.equalsIgnoreCase("POLL")) {
-			PollServer.execute(ServerIP, ServerPort, BUFFER_SIZE, ThreadNum);
+		case POLL:
+			PollServer.execute(ServerIP, ServerPort, BUFFER_SIZE, ThreadNum, ReusePort);
 			Util.loger("The provider is \t" + getProvider());
 			return;
-		} else if (Mode.equalsIgnoreCase("MT")){
+		case MT:
+			MTServer.execute(ServerPort);
+			return;
+		case MT_VT:
+			MTServer.virtualMode = true;
 			MTServer.execute(ServerPort);
 			return;
+		case AIO:
+			AIOServer.execute(ServerIP, ServerPort, BUFFER_SIZE, ThreadNum);
+			Util.loger("The provider is \t" + AsynchronousChannelProvider.provider().getClass().getName());
+			return;
 		}
 
 	}
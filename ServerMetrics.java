@@ -0,0 +1,143 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and the event-handling latency of one server engine. Every field is
+ * a LongAdder or a LatencyHistogram, so all threads of an engine can update the
+ * same instance without locks or lost updates.
+ *
+ * Get one from Metrics.server(name); it is exported over JMX from there.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+	final String name;
+
+	final LongAdder accepted = new LongAdder();
+	final LongAdder closed = new LongAdder();
+	final LongAdder bytesIn = new LongAdder();
+	final LongAdder bytesOut = new LongAdder();
+	final LongAdder messagesIn = new LongAdder();
+	final LongAdder messagesOut = new LongAdder();
+	final LongAdder selectWakeups = new LongAdder();
+	final LongAdder errors = new LongAdder();
+	final LongAdder rejected = new LongAdder(); // shed by admission control
+	final LongAdder timedOut = new LongAdder(); // closed for idle, lifetime or write stall
+	final LongAdder spinHits = new LongAdder(); // busy-poll found work before blocking
+	final LongAdder spinCpuNanos = new LongAdder(); // thread CPU time spent busy-polling
+
+	// time spent handling one selected key / one request, in nanoseconds
+	final LatencyHistogram eventTime = new LatencyHistogram();
+
+	ServerMetrics(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public long getConnectionsAccepted() {
+		return accepted.sum();
+	}
+
+	@Override
+	public long getConnectionsClosed() {
+		return closed.sum();
+	}
+
+	@Override
+	public long getConnectionsOpen() {
+		return accepted.sum() - closed.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	@Override
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	@Override
+	public long getSelectWakeups() {
+		return selectWakeups.sum();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	@Override
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	@Override
+	public long getTimedOut() {
+		return timedOut.sum();
+	}
+
+	@Override
+	public long getSpinHits() {
+		return spinHits.sum();
+	}
+
+	@Override
+	public double getSpinCpuMillis() {
+		return spinCpuNanos.sum() / 1000000.0;
+	}
+
+	@Override
+	public long getEventCount() {
+		return eventTime.count();
+	}
+
+	@Override
+	public double getEventTimeMeanMicros() {
+		return eventTime.mean() / 1000.0;
+	}
+
+	@Override
+	public double getEventTimeP50Micros() {
+		return eventTime.percentile(50) / 1000.0;
+	}
+
+	@Override
+	public double getEventTimeP99Micros() {
+		return eventTime.percentile(99) / 1000.0;
+	}
+
+	@Override
+	public double getEventTimeP999Micros() {
+		return eventTime.percentile(99.9) / 1000.0;
+	}
+
+	@Override
+	public double getEventTimeMaxMicros() {
+		return eventTime.max() / 1000.0;
+	}
+
+	@Override
+	public void resetEventTime() {
+		eventTime.reset();
+	}
+
+	@Override
+	public String toString() {
+		return name + "[accepted=" + getConnectionsAccepted() + ", open=" + getConnectionsOpen() + ", in="
+				+ getBytesIn() + "B/" + getMessagesIn() + ", out=" + getBytesOut() + "B/" + getMessagesOut()
+				+ ", wakeups=" + getSelectWakeups() + ", errors=" + getErrors() + ", rejected=" + getRejected()
+				+ ", timedOut=" + getTimedOut() + ", spin hits/cpu=" + getSpinHits() + "/" + getSpinCpuMillis() + "ms"
+				+ ", event p50/p99="
+				+ getEventTimeP50Micros() + "/" + getEventTimeP99Micros() + "us]";
+	}
+}
@@ -0,0 +1,45 @@
+/**
+ * JMX view of a ServerMetrics, see Metrics for the object names.
+ */
+public interface ServerMetricsMBean {
+
+	long getConnectionsAccepted();
+
+	long getConnectionsClosed();
+
+	long getConnectionsOpen();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	long getMessagesIn();
+
+	long getMessagesOut();
+
+	long getSelectWakeups();
+
+	long getErrors();
+
+	long getRejected();
+
+	long getTimedOut();
+
+	long getSpinHits();
+
+	double getSpinCpuMillis();
+
+	long getEventCount();
+
+	double getEventTimeMeanMicros();
+
+	double getEventTimeP50Micros();
+
+	double getEventTimeP99Micros();
+
+	double getEventTimeP999Micros();
+
+	double getEventTimeMaxMicros();
+
+	void resetEventTime();
+}
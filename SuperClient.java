@@ -2,6 +2,7 @@
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.channels.SocketChannel;
 
 import java.io.PrintWriter;
@@ -14,6 +15,9 @@ import java.util.regex.Pattern;
 /**
  * 1) Test scalability by mutil-connections 2) Test Performance
  * 
+ * Runs LoadGenerator: a few selector threads for all the connections. With
+ * -legacy it is the old client again, one thread per connection.
+ * 
  * @author john
  *
  */
@@ -25,8 +29,11 @@ public class SuperClient implements Runnable {
 	static int BUFFER_SIZE=1024*51;
 	static int INTERVAL=100; // in  the span of the connection creation, control the speed (Milli-Sec)
 	static int TTL=1000*30;  // The duration of one connection (Milli-Sec) 
+	static Payload PAYLOAD;
+	static boolean LEGACY = false; // thread per connection instead of LoadGenerator
 
 	SocketChannel socketChannel;
+	Recorder recorder;
 
 	private static int tid = 0; // thread_id
 
@@ -42,7 +49,8 @@ public class SuperClient implements Runnable {
 
 	public static void main(String[] args) throws UnknownHostException, IOException {
 
-		if (args.length == 4) {
+		Payload.SIZE = BUFFER_SIZE;
+		if (args.length >= 4) {
 			IP = args[0];
 			
 			// on purpose to demo different ways to transfer Str to Int
@@ -50,8 +58,14 @@ public class SuperClient implements Runnable {
 			INTERVAL = Integer.parseInt(args[2]);
 			TTL=Integer.parseInt(args[3]);
 			
+			for (int i = 4; i < args.length; i++) {
+				if (args[i].equals("-legacy"))
+					LEGACY = true;
+				else if (!Payload.option(args[i]) && !LoadGenerator.option(args[i]) && !Reporter.option(args[i]))
+					Util.loger("Unknown option " + args[i]);
+			}
 		} else {
-			Util.loger(" Usage: {IP} {PORT} {INTERVAL} {TTL}");
+			Util.loger(" Usage: {IP} {PORT} {INTERVAL} {TTL} [-legacy] [-selectors=n] [-conns=n] [-size=n] [-dist=fixed|uniform|bimodal|pareto] [-min=n] [-max=n] [-random] [-rate=n] [-arrival=constant|poisson] [-drain=ms] [-report=prefix|none] [-label=s]");
 			Util.loger("Current ip and port :" + IP + " " + PORT);
 			
 			return;
@@ -67,6 +81,15 @@ public class SuperClient implements Runnable {
 			System.exit(-1);
 		}
 
+		Reporter.start("SuperClient");
+		if (!LEGACY) {
+			LoadGenerator.execute(IP, PORT, INTERVAL, TTL);
+			return;
+		}
+
+		PAYLOAD = Payload.create();
+		Util.loger(PAYLOAD);
+
 		for (int i = 0;; i++) {
 			SuperClient tc = new SuperClient(i);
 			Thread t = new Thread(tc);
@@ -98,49 +121,67 @@ public class SuperClient implements Runnable {
 	public void run() {
 
 		String tName = Thread.currentThread().getName();
+		recorder = Reporter.recorder();
 		Util.loger(tName + " started...");
 		try {
 			this.connect();
+			recorder.begin().opened++;
+			recorder.end();
 
-			String mesgToSend = " Send from " + tName + Util.bigMsg(BUFFER_SIZE);
+			// the header is per connection, the body a view of the shared payload
+			ByteBuffer body = PAYLOAD.cursor(tid).next();
+			String from = " Send from " + tName;
+			ByteBuffer header = ByteBuffer.wrap(("Length:" + (from.length() + body.remaining()) + from)
+					.getBytes(StandardCharsets.US_ASCII));
+			ByteBuffer readBuffer = ByteBuffer.allocate(header.remaining() + PAYLOAD.maxSize());
 
-			this.send("Length:" + mesgToSend.length() + mesgToSend);
+			this.send(header, body, readBuffer);
 			
 			Util.setTimer(10);
 
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
+			recorder.begin().errors++;
+			recorder.end();
+		} finally {
+			recorder.retire();
 		}
 
 	}
 
-	void send(String msg) {
+	void send(ByteBuffer header, ByteBuffer body, ByteBuffer readBuffer) {
 
 		try {
-			BUFFER_SIZE = msg.length();
-			ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-			ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);  
-    
-			writeBuffer.put(msg.getBytes());
-			writeBuffer.flip();
+			ByteBuffer[] message = { header, body };
 
 			// while (true)
 			{
-				long startPoint = System.currentTimeMillis();
-				writeBuffer.rewind();
-				socketChannel.write(writeBuffer);
+				long startPoint = System.nanoTime();
+				long sent = 0;
+				while (body.hasRemaining())
+					sent += socketChannel.write(message);
 				
 				//check return 
 				readBuffer.clear();
-				socketChannel.read(readBuffer);
-				Util.loger(startPoint, "Intervial_of_echo time");
+				int received = socketChannel.read(readBuffer);
+				long used = System.nanoTime() - startPoint;
+
+				Recorder.Interval stats = recorder.begin();
+				stats.latency.record(used);
+				stats.requests++;
+				stats.bytesOut += sent;
+				stats.bytesIn += Math.max(0, received);
+				recorder.end();
+				Util.loger("Intervial_of_echo time used(us):" + used / 1000);
 				Util.logd(Util.byteBuffer2String(readBuffer));
 
 		
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
+			recorder.begin().errors++;
+			recorder.end();
 		}
 	}
 
@@ -0,0 +1,155 @@
+/**
+ * Hashed timing wheel for per-connection timeouts, owned by one reactor thread
+ * and never touched by any other (no locks, no ScheduledFuture per connection).
+ *
+ * Time is cut into ticks of tickMillis and the wheel has a power-of-two number
+ * of slots; a timer goes into the slot of its deadline tick, in a doubly linked
+ * list threaded through the Node itself, so schedule/cancel are O(1) and
+ * allocate nothing. A deadline further away than one revolution just stays in
+ * its slot until the wheel comes round to it for real.
+ *
+ * Timers are meant to be lazy: when one fires, the handler checks the real
+ * deadline of the owner (for example the last read) and schedules it again
+ * instead of rescheduling on every read.
+ *
+ * How-to: wheel.schedule(node, deadline), wheel.cancel(node), and once per loop
+ * iteration wheel.expire(now); select for at most wheel.nextTimeout(now, max).
+ */
+public final class TimingWheel<T extends TimingWheel.Node> {
+
+	/**
+	 * The intrusive part of anything with a timeout; extend it.
+	 */
+	static class Node {
+		long expiresAt; // absolute, in milliseconds
+		int slot = -1; // -1 while not scheduled
+		Node prev;
+		Node next;
+
+		boolean isScheduled() {
+			return slot >= 0;
+		}
+	}
+
+	interface Handler<T> {
+		/**
+		 * Called with the node already removed from the wheel; it may schedule
+		 * the node again.
+		 */
+		void expired(T node, long now);
+	}
+
+	private final long tickMillis;
+	private final int mask;
+	private final Node[] slots;
+	private final Handler<T> handler;
+
+	private long currentTick; // every tick up to and including this one has been expired
+	private int size;
+
+	TimingWheel(long tickMillis, int slotCount, Handler<T> handler) {
+		this.tickMillis = tickMillis < 1 ? 1 : tickMillis;
+		int n = Integer.highestOneBit(Math.max(2, slotCount - 1) << 1);
+		this.slots = new Node[n];
+		this.mask = n - 1;
+		this.handler = handler;
+		this.currentTick = System.currentTimeMillis() / this.tickMillis;
+	}
+
+	/**
+	 * Schedules the node, or moves it if it is scheduled already. A deadline in
+	 * the past fires on the next expire().
+	 */
+	void schedule(T node, long deadline) {
+		if (node.isScheduled())
+			unlink(node);
+
+		// round up: the slot comes due at its start, which must not be before the deadline
+		long tick = (deadline + tickMillis - 1) / tickMillis;
+		if (tick <= currentTick)
+			tick = currentTick + 1;
+		int idx = (int) (tick & mask);
+
+		node.expiresAt = deadline;
+		node.slot = idx;
+		node.prev = null;
+		node.next = slots[idx];
+		if (node.next != null)
+			node.next.prev = node;
+		slots[idx] = node;
+		size++;
+	}
+
+	void cancel(T node) {
+		if (node.isScheduled())
+			unlink(node);
+	}
+
+	private void unlink(Node node) {
+		if (node.prev != null)
+			node.prev.next = node.next;
+		else
+			slots[node.slot] = node.next;
+		if (node.next != null)
+			node.next.prev = node.prev;
+		node.prev = null;
+		node.next = null;
+		node.slot = -1;
+		size--;
+	}
+
+	/**
+	 * Fires every timer whose deadline is at or before now.
+	 *
+	 * @return the number of timers fired
+	 */
+	@SuppressWarnings("unchecked")
+	int expire(long now) {
+		long nowTick = now / tickMillis;
+		if (nowTick <= currentTick)
+			return 0;
+
+		// after a long stall one revolution visits every slot
+		long from = Math.max(currentTick + 1, nowTick - mask);
+		currentTick = nowTick;
+
+		int fired = 0;
+		for (long tick = from; tick <= nowTick && size > 0; tick++) {
+			Node node = slots[(int) (tick & mask)];
+			while (node != null) {
+				Node next = node.next;
+				if (node.expiresAt <= now) {
+					unlink(node);
+					fired++;
+					// a node scheduled again lands at the head of its slot, so it is
+					// not seen twice here
+					handler.expired((T) node, now);
+				}
+				node = next;
+			}
+		}
+		return fired;
+	}
+
+	/**
+	 * @return milliseconds until the first non-empty slot comes due, at most max
+	 *         and at least 1 so it can be passed to select(long)
+	 */
+	long nextTimeout(long now, long max) {
+		if (size == 0)
+			return max;
+
+		long span = Math.min(slots.length, max / tickMillis + 1);
+		for (long i = 1; i <= span; i++) {
+			if (slots[(int) ((currentTick + i) & mask)] != null) {
+				long wait = (currentTick + i) * tickMillis - now;
+				return Math.max(1, Math.min(wait, max));
+			}
+		}
+		return max;
+	}
+
+	int size() {
+		return size;
+	}
+}
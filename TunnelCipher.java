@@ -0,0 +1,156 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Record layer of the encrypted PortfwdClient <-> Portfwd tunnel.
+ *
+ * Handshake: each side sends a hello, "TN" and a 16 byte random nonce, in the
+ * clear. The session keys come from the shared key material of Util_Task
+ * (CryptoEngine.key(KEY)) once per connection: HMAC-SHA256(master, label |
+ * client nonce | server nonce), one key per direction.
+ *
+ * Records: 4 byte big-endian length, then AES/GCM ciphertext and 16 byte tag of
+ * at most MAX_RECORD plaintext bytes. The GCM nonce is the record sequence
+ * number of that direction, so nothing but the length travels besides the
+ * data, and a replayed, dropped or reordered record fails the tag.
+ *
+ * One TunnelCipher per connection and side; it is not thread-safe, it lives on
+ * the reactor (or client thread) of its connection.
+ */
+public final class TunnelCipher {
+
+	static String KEY = "aiyan&albert@bcit4comp8505&8506";
+
+	static final byte[] MAGIC = { 'T', 'N' };
+	static final int NONCE_SIZE = 16;
+	static final int HELLO_SIZE = MAGIC.length + NONCE_SIZE;
+
+	static final int MAX_RECORD = 16 * 1024; // plaintext bytes per record
+	static final int HEADER = 4;
+	static final int TAG_SIZE = 16;
+	static final int OVERHEAD = HEADER + TAG_SIZE;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private final Cipher sealer;
+	private final Cipher opener;
+	private final SecretKeySpec sealKey;
+	private final SecretKeySpec openKey;
+	private final byte[] iv = new byte[12];
+	private long sealSeq;
+	private long openSeq;
+
+	/**
+	 * @param client true on the PortfwdClient side
+	 */
+	TunnelCipher(byte[] clientNonce, byte[] serverNonce, boolean client) throws GeneralSecurityException {
+		byte[] master = CryptoEngine.key(KEY).getEncoded();
+		SecretKeySpec c2s = deriveKey(master, "client write", clientNonce, serverNonce);
+		SecretKeySpec s2c = deriveKey(master, "server write", clientNonce, serverNonce);
+		sealKey = client ? c2s : s2c;
+		openKey = client ? s2c : c2s;
+		sealer = Cipher.getInstance("AES/GCM/NoPadding");
+		opener = Cipher.getInstance("AES/GCM/NoPadding");
+	}
+
+	private static SecretKeySpec deriveKey(byte[] master, String label, byte[] clientNonce, byte[] serverNonce)
+			throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(master, "HmacSHA256"));
+		mac.update(label.getBytes(StandardCharsets.US_ASCII));
+		mac.update(clientNonce);
+		mac.update(serverNonce);
+		return new SecretKeySpec(mac.doFinal(), 0, 16, "AES");
+	}
+
+	static byte[] newNonce() {
+		byte[] nonce = new byte[NONCE_SIZE];
+		random.nextBytes(nonce);
+		return nonce;
+	}
+
+	static void putHello(ByteBuffer out, byte[] nonce) {
+		out.put(MAGIC).put(nonce);
+	}
+
+	/**
+	 * @param in flipped
+	 * @return the peer's nonce, or null if the hello is not complete yet
+	 */
+	static byte[] getHello(ByteBuffer in) throws ProtocolException {
+		if (in.remaining() < HELLO_SIZE)
+			return null;
+		if (in.get() != MAGIC[0] || in.get() != MAGIC[1])
+			throw new ProtocolException("not a tunnel hello");
+		byte[] nonce = new byte[NONCE_SIZE];
+		in.get(nonce);
+		return nonce;
+	}
+
+	/**
+	 * Encrypts up to MAX_RECORD bytes of plain as one record into out, as many
+	 * as out has room for.
+	 *
+	 * @return plaintext bytes consumed, 0 if out has no room for a record
+	 */
+	int seal(ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException {
+		int n = Math.min(Math.min(plain.remaining(), MAX_RECORD), out.remaining() - OVERHEAD);
+		if (n <= 0)
+			return 0;
+
+		sealer.init(Cipher.ENCRYPT_MODE, sealKey, new GCMParameterSpec(TAG_SIZE * 8, nonce(sealSeq++)));
+		out.putInt(n + TAG_SIZE);
+		int limit = plain.limit();
+		plain.limit(plain.position() + n);
+		try {
+			sealer.doFinal(plain, out);
+		} finally {
+			plain.limit(limit);
+		}
+		return n;
+	}
+
+	/**
+	 * Decrypts every complete record of in that fits into out; a partial record
+	 * stays in in.
+	 *
+	 * @param in flipped
+	 * @return plaintext bytes written to out
+	 * @throws GeneralSecurityException if a record does not authenticate
+	 */
+	int open(ByteBuffer in, ByteBuffer out) throws GeneralSecurityException, ProtocolException {
+		int total = 0;
+		while (in.remaining() >= HEADER) {
+			int length = in.getInt(in.position());
+			if (length < TAG_SIZE || length > MAX_RECORD + TAG_SIZE)
+				throw new ProtocolException("bad tunnel record length " + length);
+			if (in.remaining() < HEADER + length || out.remaining() < length - TAG_SIZE)
+				break;
+
+			in.position(in.position() + HEADER);
+			int limit = in.limit();
+			in.limit(in.position() + length);
+			try {
+				opener.init(Cipher.DECRYPT_MODE, openKey, new GCMParameterSpec(TAG_SIZE * 8, nonce(openSeq++)));
+				total += opener.doFinal(in, out);
+			} finally {
+				in.limit(limit);
+			}
+		}
+		return total;
+	}
+
+	private byte[] nonce(long seq) {
+		for (int i = 0; i < 8; i++)
+			iv[11 - i] = (byte) (seq >>> (8 * i));
+		return iv;
+	}
+}
@@ -3,6 +3,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 
 public class Util {
 
@@ -25,9 +26,13 @@ public class Util {
 	}
 	
 	
+	/*
+	 * Both go through the asynchronous Log now, so they never block on the
+	 * console. Hot paths should call Log.debug() behind Log.isDebug() instead.
+	 */
 	public static void loger(Object obj) {
 
-		System.out.println(obj);
+		Log.info(String.valueOf(obj));
 
 	}
 
@@ -39,7 +44,8 @@ public class Util {
 	}
 	
 	 public static void logd(Object o) {
-		   loger(o);
+		   if (Log.isDebug())
+			   Log.debug(String.valueOf(o));
 	   }
 
 	public static void setTimer(int milsec) {
@@ -54,21 +60,23 @@ public class Util {
 
 	}
 
+	/**
+	 * "HELLO FROM BCIT:-)" repeated to at least nlimit chars (twice at least),
+	 * filled into one array instead of appending. The load clients take their
+	 * payloads from Payload instead, without building a String per message.
+	 */
 	public static String bigMsg(int nlimit) {
 
 		String core = "HELLO FROM BCIT:-)";
-		StringBuffer rst = new StringBuffer(core);
-
-		while (true) {
+		int n = core.length();
+		int count = Math.max(2, (nlimit + n - 1) / n);
+		char[] rst = new char[count * n];
 
-			rst = rst.append(core);
-
-			if (rst.length() >= nlimit)
-				break;
-
-		}
+		core.getChars(0, n, rst, 0);
+		for (int filled = n; filled < rst.length; filled *= 2)
+			System.arraycopy(rst, 0, rst, filled, Math.min(filled, rst.length - filled));
 
-		return rst.toString();
+		return new String(rst);
 
 	}
 
@@ -125,6 +133,14 @@ public class Util {
 	   static String byteBuffer2String(ByteBuffer bf) {
 		   
 		   try {
+			if (!bf.hasArray()) {
+				// direct (pooled) buffer: only position..limit, the rest of a pooled
+				// buffer still holds bytes of earlier connections
+				ByteBuffer data = bf.duplicate();
+				byte[] bytes = new byte[data.remaining()];
+				data.get(bytes);
+				return new String(bytes, "UTF-8");
+			}
 			return (new String(bf.array(), "UTF-8"));
 		} catch (UnsupportedEncodingException e) {
 			// TODO Auto-generated catch block
@@ -143,6 +159,23 @@ public class Util {
 			e.printStackTrace();
 		}
 	   }
+
+	   /**
+	    * Same work as commonTask(String, String) on the bytes of raw (position to
+	    * limit, raw is not moved), encrypted into a pooled buffer that is
+	    * released again.
+	    */
+	   static void commonTask(ByteBuffer raw, String key) {
+
+		   ByteBuffer out = BufferPool.acquire(CryptoEngine.encryptedSize(raw.remaining()));
+		   try {
+			CryptoEngine.encrypt(raw.duplicate(), out, key);
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+		} finally {
+			BufferPool.release(out);
+		}
+	   }
 	
 }
 
@@ -1,10 +1,4 @@
-
-import javax.crypto.Cipher;
-import javax.crypto.Mac;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-import java.security.MessageDigest;
-import java.security.SecureRandom;
+import java.nio.ByteBuffer;
 
 public class Util_Task {
 
@@ -20,62 +14,32 @@ public class Util_Task {
         Util.loger(decrypted);
     }
 
+    /**
+     * IV + AES/CBC ciphertext of plainText, see CryptoEngine for the key and the
+     * cached Cipher.
+     */
     public static byte[] encrypt(String plainText, String key) throws Exception {
-        byte[] clean = plainText.getBytes();
-
-        // Generating IV.
-        int ivSize = 16;
-        byte[] iv = new byte[ivSize];
-        SecureRandom random = new SecureRandom();
-        random.nextBytes(iv);
-        IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-
-        // Hashing key.
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        digest.update(key.getBytes("UTF-8"));
-        byte[] keyBytes = new byte[16];
-        System.arraycopy(digest.digest(), 0, keyBytes, 0, keyBytes.length);
-        SecretKeySpec secretKeySpec = new SecretKeySpec(keyBytes, "AES");
-
-        // Encrypt.
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, ivParameterSpec);
-        byte[] encrypted = cipher.doFinal(clean);
-
-        // Combine IV and encrypted part.
-        byte[] encryptedIVAndText = new byte[ivSize + encrypted.length];
-        System.arraycopy(iv, 0, encryptedIVAndText, 0, ivSize);
-        System.arraycopy(encrypted, 0, encryptedIVAndText, ivSize, encrypted.length);
-
-        return encryptedIVAndText;
+        return CryptoEngine.encrypt(plainText.getBytes(), key);
     }
 
     public static String decrypt(byte[] encryptedIvTextBytes, String key) throws Exception {
-        int ivSize = 16;
-        int keySize = 16;
-
-        // Extract IV.
-        byte[] iv = new byte[ivSize];
-        System.arraycopy(encryptedIvTextBytes, 0, iv, 0, iv.length);
-        IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-
-        // Extract encrypted part.
-        int encryptedSize = encryptedIvTextBytes.length - ivSize;
-        byte[] encryptedBytes = new byte[encryptedSize];
-        System.arraycopy(encryptedIvTextBytes, ivSize, encryptedBytes, 0, encryptedSize);
-
-        // Hash key.
-        byte[] keyBytes = new byte[keySize];
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        md.update(key.getBytes());
-        System.arraycopy(md.digest(), 0, keyBytes, 0, keyBytes.length);
-        SecretKeySpec secretKeySpec = new SecretKeySpec(keyBytes, "AES");
+        return new String(CryptoEngine.decrypt(encryptedIvTextBytes, key));
+    }
 
-        // Decrypt.
-        Cipher cipherDecrypt = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        cipherDecrypt.init(Cipher.DECRYPT_MODE, secretKeySpec, ivParameterSpec);
-        byte[] decrypted = cipherDecrypt.doFinal(encryptedBytes);
+    /**
+     * Bulk mode for multi-megabyte payloads: IV + AES/CTR ciphertext, encrypted
+     * in parallel chunks above CryptoEngine.BULK_THRESHOLD. Not compatible with
+     * encrypt(), decrypt it with decryptBulk().
+     */
+    public static byte[] encryptBulk(byte[] clean, String key) throws Exception {
+        byte[] out = new byte[CryptoEngine.IV_SIZE + clean.length];
+        CryptoEngine.encryptBulk(ByteBuffer.wrap(clean), ByteBuffer.wrap(out), key);
+        return out;
+    }
 
-        return new String(decrypted);
+    public static byte[] decryptBulk(byte[] encryptedIvTextBytes, String key) throws Exception {
+        byte[] out = new byte[Math.max(0, encryptedIvTextBytes.length - CryptoEngine.IV_SIZE)];
+        CryptoEngine.decryptBulk(ByteBuffer.wrap(encryptedIvTextBytes), ByteBuffer.wrap(out), key);
+        return out;
     }
 }
\ No newline at end of file
@@ -0,0 +1,190 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * SEDA-style stage: a bounded pool of worker threads for handler work too heavy
+ * for a reactor thread (Util.commonTask and its AES), fed through a lock-free
+ * queue.
+ *
+ * submit() never blocks. The queue is bounded by an AtomicInteger depth and a
+ * full stage refuses the task. The caller must not run it instead: on a reactor
+ * thread that would stall every connection of the reactor, not just the client
+ * that sent it. EPollServer keeps a refused task, stops reading from its client
+ * and submits it again once the stage has room. Idle workers park and the
+ * submitter unparks one, so a busy stage costs no wakeups at all.
+ *
+ * A task hands its result back to the thread that owns the connection itself,
+ * for example through EPollServer.execute().
+ *
+ * Exported over JMX as COMP8005:type=WorkerStage,name=<name> with the queue time
+ * and service time histograms.
+ */
+public final class WorkerStage implements WorkerStageMBean {
+
+	static int THREADS = Runtime.getRuntime().availableProcessors();
+	static int QUEUE_DEPTH = 4096;
+
+	/**
+	 * Work for the stage; extend it so the submit time travels without a wrapper.
+	 */
+	abstract static class Task implements Runnable {
+		long submittedAt;
+	}
+
+	private final String name;
+	private final int depthLimit;
+	private final ConcurrentLinkedQueue<Task> queue = new ConcurrentLinkedQueue<Task>();
+	private final AtomicInteger depth = new AtomicInteger();
+
+	private final Worker[] workers;
+	private final ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<Worker>();
+	private volatile boolean running = true;
+
+	final LongAdder submitted = new LongAdder();
+	final LongAdder completed = new LongAdder();
+	final LongAdder refused = new LongAdder();
+	final LongAdder failed = new LongAdder();
+	final LatencyHistogram queueTime = new LatencyHistogram(); // submit to start, ns
+	final LatencyHistogram serviceTime = new LatencyHistogram(); // start to end, ns
+
+	private final class Worker implements Runnable {
+		final AtomicBoolean parked = new AtomicBoolean();
+		Thread thread;
+
+		@Override
+		public void run() {
+			while (running) {
+				Task task = queue.poll();
+				if (task == null) {
+					// announce ourselves, then look again so a submit in between is not missed
+					if (parked.compareAndSet(false, true))
+						idle.offer(this);
+					if (queue.isEmpty())
+						LockSupport.park(this);
+					continue;
+				}
+				depth.decrementAndGet();
+
+				long start = System.nanoTime();
+				queueTime.record(start - task.submittedAt);
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					failed.increment();
+					Log.error(name + " task failed: " + e);
+				}
+				serviceTime.record(System.nanoTime() - start);
+				completed.increment();
+			}
+		}
+	}
+
+	WorkerStage(String name, int threads, int queueDepth) {
+		this.name = name;
+		this.depthLimit = queueDepth;
+		this.workers = new Worker[Math.max(1, threads)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker();
+			workers[i].thread = new Thread(workers[i], name + "-worker-" + (i + 1));
+			workers[i].thread.setDaemon(true);
+			workers[i].thread.start();
+		}
+		Metrics.register("WorkerStage", name, this);
+		Util.loger(name + " worker stage: " + workers.length + " threads, queue depth " + queueDepth);
+	}
+
+	/**
+	 * @return false if the stage is full; the caller keeps the task and submits
+	 *         it again later
+	 */
+	boolean submit(Task task) {
+		if (depth.incrementAndGet() > depthLimit) {
+			depth.decrementAndGet();
+			refused.increment();
+			return false;
+		}
+		task.submittedAt = System.nanoTime();
+		queue.offer(task);
+		submitted.increment();
+
+		Worker worker = idle.poll();
+		if (worker != null) {
+			worker.parked.set(false);
+			LockSupport.unpark(worker.thread);
+		}
+		return true;
+	}
+
+	void shutdown() {
+		running = false;
+		for (Worker worker : workers)
+			LockSupport.unpark(worker.thread);
+	}
+
+	@Override
+	public int getThreads() {
+		return workers.length;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return depth.get();
+	}
+
+	@Override
+	public long getSubmitted() {
+		return submitted.sum();
+	}
+
+	@Override
+	public long getCompleted() {
+		return completed.sum();
+	}
+
+	@Override
+	public long getRefused() {
+		return refused.sum();
+	}
+
+	@Override
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	@Override
+	public double getQueueTimeP50Micros() {
+		return queueTime.percentile(50) / 1000.0;
+	}
+
+	@Override
+	public double getQueueTimeP99Micros() {
+		return queueTime.percentile(99) / 1000.0;
+	}
+
+	@Override
+	public double getServiceTimeP50Micros() {
+		return serviceTime.percentile(50) / 1000.0;
+	}
+
+	@Override
+	public double getServiceTimeP99Micros() {
+		return serviceTime.percentile(99) / 1000.0;
+	}
+
+	@Override
+	public void resetTimes() {
+		queueTime.reset();
+		serviceTime.reset();
+	}
+
+	@Override
+	public String toString() {
+		return name + "[threads=" + getThreads() + ", depth=" + getQueueDepth() + ", submitted=" + getSubmitted()
+				+ ", refused=" + getRefused() + ", queue p50/p99=" + getQueueTimeP50Micros() + "/"
+				+ getQueueTimeP99Micros() + "us, service p50/p99=" + getServiceTimeP50Micros() + "/"
+				+ getServiceTimeP99Micros() + "us]";
+	}
+}
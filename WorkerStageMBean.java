@@ -0,0 +1,27 @@
+/**
+ * JMX view of a WorkerStage.
+ */
+public interface WorkerStageMBean {
+
+	int getThreads();
+
+	int getQueueDepth();
+
+	long getSubmitted();
+
+	long getCompleted();
+
+	long getRefused();
+
+	long getFailed();
+
+	double getQueueTimeP50Micros();
+
+	double getQueueTimeP99Micros();
+
+	double getServiceTimeP50Micros();
+
+	double getServiceTimeP99Micros();
+
+	void resetTimes();
+}